@@ -0,0 +1,70 @@
+package DAPI_PML_Tools.Benchmarks;
+
+import DAPI_PML_Tools.Parameters;
+import DAPI_PML_Tools.Tools;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Objects3DIntPopulation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of PML foci detection (DoG + thresholding + fill holes + labelling) on synthetic images
+ * The CPU engine stands in for CLIJ2, so that results do not depend on the OpenCL device of the machine
+ * (engine=Auto to benchmark the GPU pipeline where a device is available)
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class DetectionBenchmark {
+
+    @Param({"25", "100", "400"})
+    public int nbNuclei;
+
+    @Param({"10", "50"})
+    public int fociPerNucleus;
+
+    @Param({"1", "10"})
+    public int depth;
+
+    @Param({"CPU"})
+    public String engine;
+
+    private SyntheticImages images;
+    private Tools tools;
+    private Parameters params;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        images = new SyntheticImages(nbNuclei, fociPerNucleus, depth, 42);
+        tools = new Tools();
+        params = SyntheticImages.parameters(engine, depth);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tools.releaseGpuBuffers();
+    }
+
+
+    @Benchmark
+    public Objects3DIntPopulation fociDetection() {
+        return(tools.fociDetection(images.imgPml, params));
+    }
+}
@@ -0,0 +1,99 @@
+package DAPI_PML_Tools.Benchmarks;
+
+import DAPI_PML_Tools.NucleiMeasurement;
+import DAPI_PML_Tools.RleObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Diffuse region of nuclei: foci dilated once for the image against each focus dilated and merged per nucleus,
+ * on synthetic nuclei (disks of radius 40 pixels) with a growing number of foci per nucleus
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class DilationBenchmark {
+
+    @Param({"400"})
+    public int nbNuclei;
+
+    @Param({"5", "20", "50", "150"})
+    public int fociPerNucleus;
+
+    @Param({"20"})
+    public int depth;
+
+    private List<RleObject> nucs;
+    private List<List<RleObject>> nucFoci;
+    private List<RleObject> foci;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int radius = 40, nbCols = (int) Math.ceil(Math.sqrt(nbNuclei));
+        Random random = new Random(42);
+        nucs = new ArrayList<>();
+        nucFoci = new ArrayList<>();
+        foci = new ArrayList<>();
+        for (int n = 0; n < nbNuclei; n++) {
+            int cx = (n % nbCols) * 2 * (radius + 5) + radius, cy = (n / nbCols) * 2 * (radius + 5) + radius;
+            nucs.add(RleObject.ellipsoid(cx, cy, depth / 2, radius, radius, Math.max(0, depth / 2 - 1), 1));
+            List<RleObject> inNuc = new ArrayList<>();
+            for (int f = 0; f < fociPerNucleus; f++) {
+                double angle = random.nextDouble() * 2 * Math.PI, dist = radius * Math.sqrt(random.nextDouble()) * 0.9;
+                inNuc.add(RleObject.ellipsoid(cx + (int) (dist * Math.cos(angle)), cy + (int) (dist * Math.sin(angle)),
+                                              1 + random.nextInt(Math.max(1, depth - 2)), 1 + random.nextInt(3), 1 + random.nextInt(3), 1, 1));
+            }
+            nucFoci.add(inNuc);
+            foci.addAll(inNuc);
+        }
+    }
+
+
+    /**
+     * Former path: foci of each nucleus dilated one by one and merged, then subtracted from the nucleus
+     */
+    @Benchmark
+    public void perObject(Blackhole blackhole) {
+        for (int n = 0; n < nbNuclei; n++) {
+            RleObject dilFoci = null;
+            for (RleObject focus: nucFoci.get(n)) {
+                RleObject dilatedObj = focus.dilateXY(2, 2);
+                dilFoci = (dilFoci == null) ? dilatedObj : dilFoci.union(dilatedObj);
+            }
+            blackhole.consume((dilFoci == null) ? nucs.get(n) : nucs.get(n).subtract(dilFoci));
+        }
+    }
+
+
+    /**
+     * Foci of the image dilated once, as in NucleiMeasurement, subtracted from nuclei in parallel
+     */
+    @Benchmark
+    public RleObject[] imageWide() {
+        RleObject dilFoci = NucleiMeasurement.dilateFoci(foci);
+        RleObject[] diffuse = new RleObject[nbNuclei];
+        IntStream.range(0, nbNuclei).parallel().forEach(n -> diffuse[n] = nucs.get(n).subtract(dilFoci));
+        return(diffuse);
+    }
+}
@@ -0,0 +1,63 @@
+package DAPI_PML_Tools.Benchmarks;
+
+import DAPI_PML_Tools.FociFilters;
+import ij.ImagePlus;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scaling of the CPU foci engine (DoG + thresholding + fill holes) with the number of threads, on a synthetic PML image
+ * (0 threads = all cores)
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class FociFiltersBenchmark {
+
+    @Param({"1", "2", "4", "0"})
+    public int threads;
+
+    @Param({"100"})
+    public int nbNuclei;
+
+    @Param({"20"})
+    public int depth;
+
+    private ImagePlus imgPml;
+    private FociFilters filters;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        imgPml = new SyntheticImages(nbNuclei, 50, depth, 42).imgPml;
+        filters = new FociFilters((threads > 0) ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        filters.close();
+    }
+
+
+    @Benchmark
+    public ImagePlus fociMask() {
+        return(filters.fociMask(imgPml, 1, 3, "Triangle"));
+    }
+}
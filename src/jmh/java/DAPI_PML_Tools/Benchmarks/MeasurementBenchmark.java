@@ -0,0 +1,151 @@
+package DAPI_PML_Tools.Benchmarks;
+
+import DAPI_PML_Tools.NucleiMeasurement;
+import DAPI_PML_Tools.NucleiTable;
+import DAPI_PML_Tools.Nucleus;
+import DAPI_PML_Tools.Parameters;
+import DAPI_PML_Tools.SparseLabeller;
+import DAPI_PML_Tools.Tools;
+import ij.ImagePlus;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Objects3DIntPopulation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the measurement stages of an image, on synthetic images with a growing number of nuclei and foci
+ * Run with -prof gc for allocation rates
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class MeasurementBenchmark {
+
+    @Param({"25", "100", "400"})
+    public int nbNuclei;
+
+    @Param({"10", "50"})
+    public int fociPerNucleus;
+
+    @Param({"1", "10"})
+    public int depth;
+
+    private SyntheticImages images;
+    private Tools tools;
+    private Parameters params;
+    private Objects3DIntPopulation nucPop, pmlPop;
+    private ArrayList<Nucleus> nuclei;
+    private double pmlBg;
+    private File outDir;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        images = new SyntheticImages(nbNuclei, fociPerNucleus, depth, 42);
+        tools = new Tools();
+        params = SyntheticImages.parameters("CPU", depth);
+        nucPop = tools.filterPop(images.labels, params);
+        pmlPop = new SparseLabeller().label(images.fociMask, params.minAreaFoci/params.pixArea, params.maxAreaFoci/params.pixArea,
+                                            params.getCalibration());
+        nuclei = tools.colocalizeNucFoci(nucPop, pmlPop, images.labels);
+        pmlBg = tools.computeBackground(images.labels, images.imgPml);
+        outDir = Files.createTempDirectory("dapi_pml_bench").toFile();
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file: outDir.listFiles())
+            file.delete();
+        outDir.delete();
+    }
+
+
+    @Benchmark
+    public Objects3DIntPopulation filterPop() {
+        return(tools.filterPop(images.labels, params));
+    }
+
+
+    @Benchmark
+    public Objects3DIntPopulation getPopFromImage() {
+        return(tools.getPopFromImage(images.fociMask));
+    }
+
+
+    @Benchmark
+    public double computeBackground() {
+        return(tools.computeBackground(images.labels, images.imgPml));
+    }
+
+
+    @Benchmark
+    public ArrayList<Nucleus> colocalizeNucFoci() {
+        return(tools.colocalizeNucFoci(nucPop, pmlPop, images.labels));
+    }
+
+
+    /**
+     * Nuclei measured one by one, as with Nucleus.computeParams
+     */
+    @Benchmark
+    public NucleiTable computeParams() {
+        NucleiTable table = new NucleiTable();
+        for (Nucleus nucleus: nuclei)
+            nucleus.computeParams(images.imgPml, pmlBg, params.pixArea, "bench", table);
+        return(table);
+    }
+
+
+    /**
+     * All nuclei measured in a single pass over the PML planes, as in batch processing
+     */
+    @Benchmark
+    public NucleiTable measureAllNuclei() {
+        NucleiTable table = new NucleiTable();
+        NucleiMeasurement measurement = new NucleiMeasurement(nuclei, pmlPop, images.imgPml);
+        measurement.measure(images.imgPml);
+        measurement.addRows(table, "bench", pmlBg, params.pixArea);
+        return(table);
+    }
+
+
+    /**
+     * Channels merged in the overlay are copied before each call, drawing changes their display
+     */
+    @State(Scope.Thread)
+    public static class DrawInputs {
+        ImagePlus imgPml, imgDapi;
+
+        @Setup(Level.Invocation)
+        public void copy(MeasurementBenchmark bench) {
+            imgPml = bench.images.imgPml.duplicate();
+            imgDapi = bench.images.imgDapi.duplicate();
+        }
+    }
+
+
+    @Benchmark
+    public void drawResults(DrawInputs inputs) {
+        tools.drawResults(nuclei, inputs.imgPml, inputs.imgDapi, outDir.getPath() + File.separator, "bench", params);
+    }
+}
@@ -0,0 +1,121 @@
+package DAPI_PML_Tools.Benchmarks;
+
+import DAPI_PML_Tools.Parameters;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+/**
+ * Synthetic DAPI/PML images with a controllable number of nuclei and foci, for benchmarks
+ * Nuclei are ellipsoids of radius 40 pixels in XY laid out on a grid (none touches the image borders),
+ * foci are spheres of radius 1 to 3 pixels drawn inside nuclei
+ * Images give the nuclei label image (Cellpose output), the PML channel, the DAPI channel and the foci binary mask
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class SyntheticImages {
+
+    public static final int NUC_RADIUS = 40;
+    public static final double PIXEL_SIZE = 0.2; // µm, nuclei are ~200 µm2 and foci 0.1 to 1 µm2
+
+    public final ImagePlus labels, imgDapi, imgPml, fociMask;
+    public final int nbNuclei, nbFoci;
+
+
+    public SyntheticImages(int nbNuclei, int fociPerNucleus, int depth, long seed) {
+        Random random = new Random(seed);
+        int nbCols = (int) Math.ceil(Math.sqrt(nbNuclei));
+        int step = 2 * NUC_RADIUS + 10;
+        int width = nbCols * step + 10, height = (int) Math.ceil((double) nbNuclei / nbCols) * step + 10;
+        int rz = Math.max(0, depth / 2 - 1);
+
+        short[][] labelPixels = new short[depth][width * height];
+        short[][] dapiPixels = new short[depth][width * height];
+        short[][] pmlPixels = new short[depth][width * height];
+        byte[][] maskPixels = new byte[depth][width * height];
+        for (int z = 0; z < depth; z++) {
+            for (int i = 0; i < width * height; i++) {
+                dapiPixels[z][i] = (short) (100 + 10 * random.nextGaussian());
+                pmlPixels[z][i] = (short) (200 + 20 * random.nextGaussian());
+            }
+        }
+
+        int foci = 0;
+        for (int n = 0; n < nbNuclei; n++) {
+            int cx = 10 + (n % nbCols) * step + NUC_RADIUS, cy = 10 + (n / nbCols) * step + NUC_RADIUS, cz = depth / 2;
+            for (int z = 0; z < depth; z++) {
+                double fz = (rz == 0) ? ((z == cz) ? 0 : 2) : Math.pow((double) (z - cz) / rz, 2);
+                for (int y = cy - NUC_RADIUS; y <= cy + NUC_RADIUS; y++) {
+                    for (int x = cx - NUC_RADIUS; x <= cx + NUC_RADIUS; x++) {
+                        if (fz + (Math.pow(x - cx, 2) + Math.pow(y - cy, 2)) / (NUC_RADIUS * NUC_RADIUS) > 1)
+                            continue;
+                        labelPixels[z][y * width + x] = (short) (n + 1);
+                        dapiPixels[z][y * width + x] += 1000;
+                        pmlPixels[z][y * width + x] += 100;
+                    }
+                }
+            }
+
+            for (int f = 0; f < fociPerNucleus; f++) {
+                double angle = random.nextDouble() * 2 * Math.PI, dist = 0.8 * NUC_RADIUS * Math.sqrt(random.nextDouble());
+                int fx = cx + (int) (dist * Math.cos(angle)), fy = cy + (int) (dist * Math.sin(angle));
+                int fz = (depth == 1) ? 0 : Math.max(0, Math.min(depth - 1, cz + random.nextInt(2 * rz + 1) - rz));
+                int radius = 1 + random.nextInt(3);
+                for (int z = Math.max(0, fz - radius); z <= Math.min(depth - 1, fz + radius); z++) {
+                    for (int y = fy - radius; y <= fy + radius; y++) {
+                        for (int x = fx - radius; x <= fx + radius; x++) {
+                            double d2 = Math.pow(x - fx, 2) + Math.pow(y - fy, 2) + Math.pow(z - fz, 2);
+                            if (d2 > radius * radius)
+                                continue;
+                            maskPixels[z][y * width + x] = (byte) 255;
+                            pmlPixels[z][y * width + x] += (short) (2000 * Math.exp(-d2 / 4));
+                        }
+                    }
+                }
+                foci++;
+            }
+        }
+
+        this.nbNuclei = nbNuclei;
+        this.nbFoci = foci;
+        ImageStack labelStack = new ImageStack(width, height), dapiStack = new ImageStack(width, height);
+        ImageStack pmlStack = new ImageStack(width, height), maskStack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            labelStack.addSlice(new ShortProcessor(width, height, labelPixels[z], null));
+            dapiStack.addSlice(new ShortProcessor(width, height, dapiPixels[z], null));
+            pmlStack.addSlice(new ShortProcessor(width, height, pmlPixels[z], null));
+            maskStack.addSlice(new ByteProcessor(width, height, maskPixels[z]));
+        }
+        labels = calibrated(new ImagePlus("labels", labelStack));
+        imgDapi = calibrated(new ImagePlus("dapi", dapiStack));
+        imgPml = calibrated(new ImagePlus("pml", pmlStack));
+        fociMask = calibrated(new ImagePlus("foci", maskStack));
+    }
+
+
+    public static Calibration calibration() {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = cal.pixelHeight = PIXEL_SIZE;
+        cal.pixelDepth = 0.5;
+        cal.setUnit("µm");
+        return(cal);
+    }
+
+
+    private static ImagePlus calibrated(ImagePlus img) {
+        img.setCalibration(calibration());
+        return(img);
+    }
+
+
+    /**
+     * Default analysis parameters, foci detected with the given engine (CPU for a stand-in of CLIJ2 without OpenCL device)
+     * Size bounds are areas compared to volumes in voxels, they are scaled with the number of planes to keep all objects
+     */
+    public static Parameters parameters(String fociEngine, int depth) {
+        return(new Parameters(0, 1, calibration(), "", "cyto2", 100, false, 1, 50, 550 * depth, 1, 3, "Triangle", 0.05, 3 * depth,
+                              fociEngine, 1, 1024, false, false, "Full", "Merged TIFF", 0, 100, "", 0, null, null, null));
+    }
+}
@@ -0,0 +1,153 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Intensity statistics of the pixels outside objects of a label image (background), in all planes
+ * 8-bit and 16-bit intensities are counted in a histogram, percentiles are exact and the median is the one of ImageJ
+ * (smallest value whose cumulative count is above half the pixels). Float intensities have no finite set of values
+ * to count: every background pixel is kept (4 bytes each) and sorted, so that statistics are exact as in ImageJ
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class BackgroundStats {
+
+    private final long[] histogram;
+    private float[] values;
+    private long count = 0;
+
+
+    public BackgroundStats(int bitDepth) {
+        if (bitDepth == 32) {
+            histogram = null;
+            values = new float[1024];
+        } else
+            histogram = new long[1 << bitDepth];
+    }
+
+
+    /**
+     * Background statistics of the image, planes are scanned in parallel
+     * Each split of the planes range fills its own statistics, merged in place at the end (not one histogram per plane)
+     */
+    public static BackgroundStats compute(ImagePlus labels, ImagePlus img) {
+        return(IntStream.range(1, img.getStackSize() + 1).parallel()
+                .collect(() -> new BackgroundStats(img.getBitDepth()),
+                         (stats, z) -> stats.addPlane(labels.getStack().getProcessor(z), img.getStack().getProcessor(z)),
+                         BackgroundStats::add));
+    }
+
+
+    /**
+     * Add pixels of the plane with label 0
+     */
+    public void addPlane(ImageProcessor labels, ImageProcessor ip) {
+        int size = ip.getPixelCount();
+        if (histogram != null) {
+            for (int i = 0; i < size; i++) {
+                if (labels.get(i) == 0) {
+                    histogram[ip.get(i)]++;
+                    count++;
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                if (labels.get(i) == 0) {
+                    if (count == values.length)
+                        values = Arrays.copyOf(values, values.length * 2);
+                    values[(int) count++] = ip.getf(i);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Add statistics of other pixels to these ones
+     */
+    public void add(BackgroundStats other) {
+        if (histogram != null) {
+            for (int v = 0; v < histogram.length; v++)
+                histogram[v] += other.histogram[v];
+        } else {
+            if (count + other.count > values.length)
+                values = Arrays.copyOf(values, (int) Math.max(count + other.count, Math.min(Integer.MAX_VALUE - 8, 2L * values.length)));
+            System.arraycopy(other.values, 0, values, (int) count, (int) other.count);
+        }
+        count += other.count;
+    }
+
+
+    /**
+     * Number of background pixels
+     */
+    public long getCount() {
+        return(count);
+    }
+
+
+    /**
+     * Median of background pixels, as measured by ImageJ, NaN if there is no background pixel
+     */
+    public double median() {
+        if (histogram == null) {
+            if (count == 0)
+                return(Double.NaN);
+            float[] sorted = sortedValues();
+            int middle = sorted.length / 2;
+            return((sorted.length % 2 == 0) ? (sorted[middle-1] + sorted[middle]) / 2.0 : sorted[middle]);
+        }
+        return(percentile(50));
+    }
+
+
+    /**
+     * Percentile (0-100) of background pixels: smallest value whose cumulative count is above p% of the pixels
+     */
+    public double percentile(double p) {
+        if (count == 0)
+            return(Double.NaN);
+        double rank = count * p / 100;
+        if (histogram == null) {
+            float[] sorted = sortedValues();
+            return(sorted[(int) Math.min(count - 1, (long) Math.floor(rank))]);
+        }
+        long sum = 0;
+        for (int v = 0; v < histogram.length; v++) {
+            sum += histogram[v];
+            if (sum > rank)
+                return(v);
+        }
+        return(histogram.length - 1);
+    }
+
+
+    /**
+     * Median absolute deviation of background pixels around their median
+     */
+    public double mad() {
+        if (count == 0)
+            return(Double.NaN);
+        double median = median();
+        BackgroundStats deviations = new BackgroundStats((histogram == null) ? 32 : (histogram.length == 256) ? 8 : 16);
+        if (histogram != null) {
+            for (int v = 0; v < histogram.length; v++)
+                deviations.histogram[(int) Math.abs(v - median)] += histogram[v];
+        } else {
+            deviations.values = new float[(int) count];
+            for (int i = 0; i < count; i++)
+                deviations.values[i] = (float) Math.abs(values[i] - median);
+        }
+        deviations.count = count;
+        return(deviations.median());
+    }
+
+
+    private float[] sortedValues() {
+        float[] sorted = Arrays.copyOf(values, (int) count);
+        Arrays.sort(sorted);
+        return(sorted);
+    }
+}
@@ -0,0 +1,178 @@
+package DAPI_PML_Tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Record of the images processed in an output folder, so that a crashed batch can be resumed
+ * Each line of manifest.tsv gives image path, size, last modification time, parameters hash and status,
+ * the last line of an image wins
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class BatchManifest {
+
+    public static final String FILE_NAME = "manifest.tsv";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private final String outDir;
+    private final String paramsHash;
+    private final String overlayExt; // null if no overlay is written
+    private final HashMap<String, String[]> entries = new HashMap<>();
+    private final BufferedWriter manifest;
+    // An image of the folder was processed with other parameters
+    private boolean otherParameters = false;
+
+
+    public BatchManifest(String outDir, String paramsHash, String overlayExt) throws IOException {
+        this(outDir, FILE_NAME, paramsHash, overlayExt);
+    }
+
+
+    /**
+     * Manifest with another file name, each shard of a batch split across nodes has its own
+     */
+    public BatchManifest(String outDir, String fileName, String paramsHash, String overlayExt) throws IOException {
+        this.outDir = outDir.endsWith(File.separator) ? outDir : outDir + File.separator;
+        this.paramsHash = paramsHash;
+        this.overlayExt = overlayExt;
+
+        File manifestFile = new File(outDir, fileName);
+        if (manifestFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(manifestFile))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    String[] fields = line.split("\t");
+                    if (fields.length == 5) {
+                        entries.put(fields[0], fields);
+                        otherParameters |= !fields[3].equals(paramsHash);
+                    }
+                }
+            }
+        }
+        manifest = new BufferedWriter(new FileWriter(manifestFile, true));
+    }
+
+
+    /**
+     * Return the most recent Results_ folder of the images folder containing a manifest, null if none
+     */
+    public static String findLastOutDir(String imgDir) {
+        File[] dirs = new File(imgDir).listFiles(f -> f.isDirectory() && f.getName().startsWith("Results_") && new File(f, FILE_NAME).exists());
+        if (dirs == null || dirs.length == 0)
+            return(null);
+        Arrays.sort(dirs);
+        return(dirs[dirs.length-1].getAbsolutePath() + File.separator);
+    }
+
+
+    /**
+     * Check if all images of the manifest of an output folder were processed with the given parameters
+     * (true if there is no manifest yet)
+     */
+    public static boolean sameParameters(String outDir, String fileName, String paramsHash) throws IOException {
+        File manifestFile = new File(outDir, fileName);
+        if (!manifestFile.exists())
+            return(true);
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifestFile))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split("\t");
+                if (fields.length == 5 && !fields[3].equals(paramsHash))
+                    return(false);
+            }
+        }
+        return(true);
+    }
+
+
+    /**
+     * Check if an image was fully processed with the same parameters and its overlay (if any) is still there
+     */
+    public boolean isDone(String file) {
+        String[] entry = entries.get(file);
+        File imgFile = new File(file);
+        return(entry != null && entry[4].equals(DONE) && entry[3].equals(paramsHash)
+               && entry[1].equals(Long.toString(imgFile.length())) && entry[2].equals(Long.toString(imgFile.lastModified()))
+               && (overlayExt == null || new File(outDir + FilenameUtils.getBaseName(file) + overlayExt).exists()));
+    }
+
+
+    /**
+     * Return images that still have to be processed
+     */
+    public ArrayList<String> remaining(List<String> imgFiles) {
+        ArrayList<String> remaining = new ArrayList<>();
+        for (String file: imgFiles) {
+            if (!isDone(file))
+                remaining.add(file);
+        }
+        System.out.println((imgFiles.size() - remaining.size()) + " image(s) already done, " + remaining.size() + " to process");
+        return(remaining);
+    }
+
+
+    /**
+     * Record the status of an image
+     */
+    public synchronized void mark(String file, String status) throws IOException {
+        File imgFile = new File(file);
+        String[] entry = {file, Long.toString(imgFile.length()), Long.toString(imgFile.lastModified()), paramsHash, status};
+        entries.put(file, entry);
+        manifest.write(String.join("\t", entry) + "\n");
+        manifest.flush();
+    }
+
+
+    /**
+     * Open results file in append mode
+     * Rows of images that are not done (crashed while writing, image modified since) are removed first, as these images
+     * are processed again. Results of other parameters are never rewritten: the folder must be left to another run
+     */
+    public BufferedWriter openResults(String fileName, String header) throws IOException {
+        if (otherParameters)
+            throw new IOException("Results in " + outDir + " were computed with other parameters, resume in a new output folder");
+        File resultsFile = new File(outDir, fileName);
+        if (resultsFile.exists()) {
+            HashSet<String> doneImages = new HashSet<>();
+            for (String file: entries.keySet()) {
+                if (isDone(file))
+                    doneImages.add(FilenameUtils.getBaseName(file));
+            }
+
+            File tmpFile = new File(outDir, fileName + ".tmp");
+            try (BufferedReader reader = new BufferedReader(new FileReader(resultsFile));
+                 BufferedWriter writer = new BufferedWriter(new FileWriter(tmpFile, false))) {
+                writer.write(header);
+                reader.readLine();
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    int tab = line.indexOf('\t');
+                    if (tab > 0 && doneImages.contains(line.substring(0, tab)))
+                        writer.write(line + "\n");
+                }
+            }
+            Files.move(tmpFile.toPath(), resultsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return(new BufferedWriter(new FileWriter(resultsFile, true)));
+        }
+
+        BufferedWriter results = new BufferedWriter(new FileWriter(resultsFile, false));
+        results.write(header);
+        results.flush();
+        return(results);
+    }
+
+
+    public void close() throws IOException {
+        manifest.close();
+    }
+}
@@ -0,0 +1,427 @@
+package DAPI_PML_Tools;
+
+import DAPI_PML_Tools.Cellpose.CellposeServer;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import mcib3d.geom2.Objects3DIntPopulation;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Pipeline images of a batch through three stages:
+ * - loading, in a single thread owning the reader
+ * - segmentation (Cellpose + foci filtering), in a single thread, by chunks of images sharing a Cellpose invocation
+ * - measurement, in a pool of workers
+ * - drawing and saving of overlays, in background writer threads with a bounded queue
+ * The number of decoded images in flight is bounded by the memory budget, images are released once their overlay is written
+ * A chunk is cut short when its next image does not fit in the remaining budget, an image bigger than the budget is processed alone
+ * In streaming mode, only DAPI channel is loaded, PML planes are read on demand for foci detection and measurement
+ * Each stage of an image is timed, rows of done images are written in the timings file
+ * Nuclei labels already in the Cellpose cache are not segmented again
+ * In parameter sweep mode, foci of all parameter sets are detected and measured for each image, without overlays
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class BatchProcessor {
+
+    private static final int FLUSH_ROWS = 10000;
+    
+    private final Tools tools;
+    private final Parameters params;
+    private final ImageProcessorReader reader;
+    private final IMetadata meta;
+    private final int memoryBudget; // MB
+    private final Semaphore memory;
+    private CellposeServer cellposeServer;
+    private OverlayWriter overlayWriter;
+    private final ParameterSweep sweep; // null if no sweep
+
+
+    public BatchProcessor(Tools tools, Parameters params, ImageProcessorReader reader, IMetadata meta) {
+        this.tools = tools;
+        this.params = params;
+        this.reader = reader;
+        this.meta = meta;
+        this.memoryBudget = (int) Math.min(Integer.MAX_VALUE, params.memoryBudget);
+        this.memory = new Semaphore(memoryBudget, true);
+        this.sweep = params.isSweep() ? new ParameterSweep(params) : null;
+    }
+
+
+    /**
+     * Image of the batch going through the pipeline
+     */
+    private static class ImageJob {
+        final String file;
+        final String imgName;
+        int memoryPermits;
+        ImagePlus imgDapi, imgPml, maskDapi;
+        PlaneReader pmlPlanes;
+        Objects3DIntPopulation pmlPop;
+        Objects3DIntPopulation[] sweepPops;
+        RuntimeException error;
+        double pmlBg;
+        NucleiTable table = new NucleiTable();
+        NucleiTable[] sweepTables;
+        CompletableFuture<Void> overlay;
+        final StageTimings timings;
+
+        ImageJob(String file) {
+            this.file = file;
+            this.imgName = FilenameUtils.getBaseName(file);
+            this.timings = new StageTimings(imgName);
+        }
+    }
+
+
+    /**
+     * Analyze all images and write their results and stage timings in sorted files order
+     */
+    public void process(ArrayList<String> imgFiles, String outDir, BufferedWriter results, BufferedWriter timings, BatchManifest manifest) throws IOException {
+        ExecutorService loadExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService segExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService measureExecutor = Executors.newFixedThreadPool(params.nbWorkers);
+        if (params.cellposeServer)
+            cellposeServer = new CellposeServer(tools.cellposeSettings(params));
+        overlayWriter = new OverlayWriter(tools, Math.max(1, params.nbWorkers / 2), params.nbWorkers);
+        StageTimings.resetPeakHeap();
+        try {
+            ArrayList<ImageJob> jobs = new ArrayList<>();
+            ArrayList<CompletableFuture<ImageJob>> futures = new ArrayList<>();
+            for (String file: imgFiles) {
+                jobs.add(new ImageJob(file));
+                futures.add(new CompletableFuture<>());
+            }
+            loadExecutor.execute(() -> load(jobs, futures, outDir, segExecutor, measureExecutor));
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    writeResults(futures.get(i).join(), results);
+                    jobs.get(i).timings.write(timings);
+                    manifest.mark(jobs.get(i).file, BatchManifest.DONE);
+                } catch (CompletionException ex) {
+                    Logger.getLogger(BatchProcessor.class.getName()).log(Level.SEVERE, "Image " + jobs.get(i).imgName + " failed", ex.getCause());
+                    manifest.mark(jobs.get(i).file, BatchManifest.FAILED);
+                }
+            }
+            tools.print(String.format("Peak heap used during the batch: %.0f MB", StageTimings.peakHeap()));
+            LabelCache cache = tools.getLabelCache(params);
+            if (cache != null)
+                tools.print("Cellpose cache: " + cache.getHits() + " hit(s), " + cache.getMisses() + " miss(es)");
+        } finally {
+            loadExecutor.shutdownNow();
+            segExecutor.shutdownNow();
+            measureExecutor.shutdownNow();
+            overlayWriter.close();
+            tools.releaseGpuBuffers();
+            if (cellposeServer != null) {
+                cellposeServer.close();
+                cellposeServer = null;
+            }
+        }
+    }
+
+
+    /**
+     * Load images in files order and group them in chunks
+     * A chunk is segmented once it is full or once the next image does not fit in the remaining memory budget, since
+     * images of a chunk hold their budget until the chunk is segmented, measured and released
+     */
+    private void load(List<ImageJob> jobs, List<CompletableFuture<ImageJob>> futures, String outDir,
+                      ExecutorService segExecutor, ExecutorService measureExecutor) {
+        ArrayList<ImageJob> chunk = new ArrayList<>();
+        ArrayList<CompletableFuture<ImageJob>> chunkFutures = new ArrayList<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            ImageJob job = jobs.get(i);
+            try {
+                reader.setId(job.file);
+                int permits = permits();
+                boolean acquired = !chunk.isEmpty() && chunk.size() < params.cellposeChunkSize && memory.tryAcquire(permits);
+                if (!acquired) {
+                    submit(chunk, chunkFutures, outDir, segExecutor, measureExecutor);
+                    chunk = new ArrayList<>();
+                    chunkFutures = new ArrayList<>();
+                    memory.acquire(permits);
+                }
+                job.memoryPermits = permits;
+                open(job);
+                chunk.add(job);
+                chunkFutures.add(futures.get(i));
+            } catch (FormatException | IOException | RuntimeException ex) {
+                release(job);
+                futures.get(i).completeExceptionally(ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                for (ImageJob chunkJob: chunk)
+                    release(chunkJob);
+                for (CompletableFuture<ImageJob> future: futures.subList(i, futures.size()))
+                    future.completeExceptionally(ex);
+                for (CompletableFuture<ImageJob> future: chunkFutures)
+                    future.completeExceptionally(ex);
+                return;
+            }
+        }
+        submit(chunk, chunkFutures, outDir, segExecutor, measureExecutor);
+    }
+
+
+    /**
+     * Memory budget permits (MB) of the image of the reader: its decoded channels and nuclei labels (16-bit), resident
+     * until the image is released. An image bigger than the whole budget takes all of it, and is processed alone
+     */
+    private int permits() {
+        long voxels = (long) reader.getSizeX() * reader.getSizeY() * reader.getSizeZ() * reader.getSizeT();
+        int channels = params.streaming ? 1 : 2;
+        long imgSize = voxels * (FormatTools.getBytesPerPixel(reader.getPixelType()) * channels + 2);
+        return((int) Math.max(1, Math.min(memoryBudget, imgSize / (1024*1024))));
+    }
+
+
+    /**
+     * Open DAPI and PML channels (only DAPI in streaming mode) of the image of the reader
+     */
+    private void open(ImageJob job) throws FormatException, IOException {
+        StageTimings.Stage stage = StageTimings.start(StageTimings.OPEN);
+        if (params.streaming) {
+            tools.print(job.imgName + " - Opening DAPI channel -");
+            job.imgDapi = tools.openChannels(reader, meta, job.imgName, new int[]{params.dapiChannel})[0];
+            // Shared by foci detection and measurement, closed when the job is released
+            job.pmlPlanes = new PlaneReader(job.file, params.pmlChannel);
+        } else {
+            tools.print(job.imgName + " - Opening DAPI and PML channels -");
+            ImagePlus[] imgChannels = tools.openChannels(reader, meta, job.imgName, new int[]{params.dapiChannel, params.pmlChannel});
+            job.imgDapi = imgChannels[0];
+            job.imgPml = imgChannels[1];
+        }
+        job.timings.stop(stage, -1);
+    }
+
+
+    /**
+     * Segment a chunk of loaded images, then measure each image and write its overlay
+     * The future of an image is completed once its memory budget is given back
+     */
+    private void submit(ArrayList<ImageJob> chunk, ArrayList<CompletableFuture<ImageJob>> chunkFutures, String outDir,
+                        ExecutorService segExecutor, ExecutorService measureExecutor) {
+        if (chunk.isEmpty())
+            return;
+        CompletableFuture<Void> segmented = CompletableFuture.runAsync(() -> segment(chunk), segExecutor);
+        for (int i = 0; i < chunk.size(); i++) {
+            ImageJob job = chunk.get(i);
+            CompletableFuture<ImageJob> future = chunkFutures.get(i);
+            segmented.thenApplyAsync(v -> measure(job, outDir), measureExecutor)
+                     .thenCompose(j -> j.overlay.thenApply(v -> j))
+                     .whenComplete((j, ex) -> {
+                         release(job);
+                         if (ex != null)
+                             future.completeExceptionally(ex);
+                         else
+                             future.complete(j);
+                     });
+        }
+    }
+
+
+    /**
+     * Detect DAPI nuclei and PML foci in the loaded images of a chunk
+     */
+    private void segment(ArrayList<ImageJob> jobs) {
+        ArrayList<ImagePlus> imgsDapi = new ArrayList<>();
+        for (ImageJob job: jobs)
+            imgsDapi.add(job.imgDapi);
+
+        tools.print("- Detecting DAPI nuclei in " + jobs.size() + " image(s) -");
+        StageTimings.Stage cellposeStage = StageTimings.start(StageTimings.CELLPOSE);
+        List<ImagePlus> masksDapi = tools.cellposeDetection(imgsDapi, params, cellposeServer);
+        cellposeStage.end();
+
+        for (int i = 0; i < jobs.size(); i++) {
+            ImageJob job = jobs.get(i);
+            try {
+                job.maskDapi = masksDapi.get(i);
+                if (job.maskDapi == null)
+                    throw new IllegalStateException("Cellpose failed");
+                job.timings.stop(cellposeStage, -1, jobs.size());
+                tools.print(job.imgName + " - Detecting PML foci -");
+                StageTimings.Stage stage = StageTimings.start(StageTimings.FOCI_DETECTION);
+                if (sweep != null) {
+                    job.sweepPops = tools.fociDetection(job.imgPml, params, sweep);
+                    job.timings.stop(stage, job.sweepPops[0].getNbObjects());
+                    continue;
+                }
+                if (params.streaming)
+                    job.pmlPop = tools.fociDetection(job.pmlPlanes, params);
+                else
+                    job.pmlPop = tools.fociDetection(job.imgPml, params);
+                job.timings.stop(stage, job.pmlPop.getNbObjects());
+            } catch (RuntimeException ex) {
+                job.error = ex;
+            } catch (IOException ex) {
+                job.error = new UncheckedIOException(ex);
+            }
+        }
+    }
+
+
+    /**
+     * Compute parameters of each nucleus and queue drawing of results
+     */
+    private ImageJob measure(ImageJob job, String outDir) {
+        if (job.error != null)
+            throw job.error;
+        if (params.streaming)
+            return(measureStreaming(job, outDir));
+        StageTimings.Stage stage = StageTimings.start(StageTimings.BACKGROUND);
+        job.pmlBg = tools.computeBackground(job.maskDapi, job.imgPml);
+        job.timings.stop(stage, -1);
+        Objects3DIntPopulation nucPop = filterPop(job);
+        if (sweep != null)
+            return(measureSweep(job, nucPop));
+
+        tools.print(job.imgName + " - Getting PML foci for each nucleus -");
+        ArrayList<Nucleus> nuclei = colocalize(job, nucPop);
+        stage = StageTimings.start(StageTimings.MEASUREMENT);
+        NucleiMeasurement measurement = new NucleiMeasurement(nuclei, job.pmlPop, job.imgPml);
+        measurement.measure(job.imgPml);
+        measurement.addRows(job.table, job.imgName, job.pmlBg, params.pixArea);
+        job.timings.stop(stage, nuclei.size());
+
+        job.overlay = overlayWriter.submit(nuclei, job.imgPml, job.imgDapi, outDir, job.imgName, job.file, params, job.timings);
+        return(job);
+    }
+
+
+    /**
+     * Same as measure, PML planes being read one at a time
+     * Each plane is read once for both background statistics and nuclei measurement (timed together as measurement)
+     */
+    private ImageJob measureStreaming(ImageJob job, String outDir) {
+        PlaneReader pml = job.pmlPlanes;
+        try {
+            Objects3DIntPopulation nucPop = filterPop(job);
+
+            tools.print(job.imgName + " - Getting PML foci for each nucleus -");
+            ArrayList<Nucleus> nuclei = colocalize(job, nucPop);
+            StageTimings.Stage stage = StageTimings.start(StageTimings.MEASUREMENT);
+            // DAPI image gives the calibration
+            NucleiMeasurement measurement = new NucleiMeasurement(nuclei, job.pmlPop, job.imgDapi);
+            BackgroundStats bgStats = new BackgroundStats(pml.getBitDepth());
+            for (int z = 0; z < pml.getSize(); z++) {
+                ImageProcessor ipPml = pml.getPlane(z);
+                bgStats.addPlane(job.maskDapi.getStack().getProcessor(z+1), ipPml);
+                measurement.addPlane(z, ipPml);
+            }
+            job.pmlBg = tools.printBackground(bgStats);
+            measurement.addRows(job.table, job.imgName, job.pmlBg, params.pixArea);
+            job.timings.stop(stage, nuclei.size());
+
+            job.overlay = overlayWriter.submit(nuclei, null, job.imgDapi, outDir, job.imgName, job.file, params, job.timings);
+            return(job);
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+
+    /**
+     * Same as measure for each parameter set of the sweep, nuclei and background being shared
+     * Colocalization and measurement stages are timed for all parameter sets together
+     */
+    private ImageJob measureSweep(ImageJob job, Objects3DIntPopulation nucPop) {
+        tools.print(job.imgName + " - Measuring " + sweep.size() + " parameter sets -");
+        StageTimings.Stage stage = StageTimings.start(StageTimings.COLOCALIZATION);
+        List<ArrayList<Nucleus>> nucleiSets = tools.colocalizeNucFoci(nucPop, job.sweepPops, job.maskDapi);
+        int nbFoci = 0;
+        for (ArrayList<Nucleus> nuclei: nucleiSets)
+            for (Nucleus nucleus: nuclei)
+                nbFoci += nucleus.pmlFoci.getNbObjects();
+        job.timings.stop(stage, nbFoci);
+        stage = StageTimings.start(StageTimings.MEASUREMENT);
+        job.sweepTables = new NucleiTable[sweep.size()];
+        for (int i = 0; i < sweep.size(); i++) {
+            NucleiMeasurement measurement = new NucleiMeasurement(nucleiSets.get(i), job.sweepPops[i], job.imgPml);
+            measurement.measure(job.imgPml);
+            job.sweepTables[i] = new NucleiTable();
+            measurement.addRows(job.sweepTables[i], job.imgName, job.pmlBg, params.pixArea);
+        }
+        job.timings.stop(stage, nucPop.getNbObjects());
+        job.overlay = CompletableFuture.completedFuture(null);
+        return(job);
+    }
+
+
+    /**
+     * Nuclei of the image, filtered by size
+     */
+    private Objects3DIntPopulation filterPop(ImageJob job) {
+        StageTimings.Stage stage = StageTimings.start(StageTimings.FILTER_POP);
+        Objects3DIntPopulation nucPop = tools.filterPop(job.maskDapi, params);
+        job.timings.stop(stage, nucPop.getNbObjects());
+        return(nucPop);
+    }
+
+
+    /**
+     * Foci of each nucleus, the number of foci in nuclei is recorded
+     */
+    private ArrayList<Nucleus> colocalize(ImageJob job, Objects3DIntPopulation nucPop) {
+        StageTimings.Stage stage = StageTimings.start(StageTimings.COLOCALIZATION);
+        ArrayList<Nucleus> nuclei = tools.colocalizeNucFoci(nucPop, job.pmlPop, job.maskDapi);
+        int nbFoci = 0;
+        for (Nucleus nucleus: nuclei)
+            nbFoci += nucleus.pmlFoci.getNbObjects();
+        job.timings.stop(stage, nbFoci);
+        return(nuclei);
+    }
+
+
+    /**
+     * Close images and PML reader of a job and give back its memory budget
+     */
+    private void release(ImageJob job) {
+        for (ImagePlus img: new ImagePlus[]{job.imgDapi, job.imgPml, job.maskDapi}) {
+            if (img != null)
+                tools.closeImage(img);
+        }
+        job.imgDapi = job.imgPml = job.maskDapi = null;
+        if (job.pmlPlanes != null) {
+            try {
+                job.pmlPlanes.close();
+            } catch (IOException ex) {
+                System.out.println("Can't close PML reader of " + job.imgName + ": " + ex.getMessage());
+            }
+            job.pmlPlanes = null;
+        }
+        job.pmlPop = null;
+        job.sweepPops = null;
+        memory.release(job.memoryPermits);
+        job.memoryPermits = 0;
+    }
+
+
+    /**
+     * Write results of an image in results file, flushed once per image (or every FLUSH_ROWS rows)
+     */
+    private void writeResults(ImageJob job, BufferedWriter results) throws IOException {
+        if (job.sweepTables != null) {
+            for (int i = 0; i < job.sweepTables.length; i++)
+                job.sweepTables[i].write(results, sweep.columns(i), FLUSH_ROWS);
+            return;
+        }
+        job.table.write(results, FLUSH_ROWS);
+    }
+}
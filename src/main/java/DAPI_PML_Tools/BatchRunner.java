@@ -0,0 +1,234 @@
+package DAPI_PML_Tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import org.apache.commons.lang.ArrayUtils;
+
+/**
+ * Headless entry point, to run the analysis without GUI (cluster nodes, SLURM array jobs...)
+ *
+ * Analyze images (or a shard of them):
+ *   BatchRunner --images <dir> --out <dir> [--params <file.properties>] [--shard <k>/<N> | --files <list.txt>] [key=value ...]
+ * Merge results and manifests of all shards:
+ *   BatchRunner --merge <dir>
+ *
+ * Parameters are read from the properties file, then from key=value arguments (see Tools.readParameters):
+ * dapiChannel, pmlChannel (channel name or index), minAreaNuc, maxAreaNuc, thMethod, minAreaFoci, maxAreaFoci,
+ * fociEngine, pixelSize, cellposeEnvDir, cellposeModel, cellposeDiam, cellposeServer, cellposeChunkSize,
+ * cellposeCacheDir, cellposeCacheSize, nbWorkers, memoryBudget, resume, streaming, tileSize, tileOverlap,
+ * overlay, overlayFormat, sweepThMethods, sweepMinAreaFoci, sweepMaxAreaFoci
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class BatchRunner {
+
+    private static final String USAGE = "Usage:\n"
+            + "  BatchRunner --images <dir> --out <dir> [--params <file.properties>] [--shard <k>/<N> | --files <list.txt>] [key=value ...]\n"
+            + "  BatchRunner --merge <dir>";
+
+    private final Tools tools = new Tools();
+
+
+    public static void main(String[] args) {
+        try {
+            System.exit(new BatchRunner().run(args));
+        } catch (Exception ex) {
+            Logger.getLogger(BatchRunner.class.getName()).log(Level.SEVERE, null, ex);
+            System.exit(1);
+        }
+    }
+
+
+    public int run(String[] args) throws Exception {
+        String imgDir = null, outDir = null, paramsFile = null, shard = null, filesList = null, mergeDir = null;
+        Properties props = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--") && i + 1 >= args.length) {
+                System.out.println(USAGE);
+                return(2);
+            }
+            switch (arg) {
+                case "--images" :
+                    imgDir = args[++i];
+                    break;
+                case "--out" :
+                    outDir = args[++i];
+                    break;
+                case "--params" :
+                    paramsFile = args[++i];
+                    break;
+                case "--shard" :
+                    shard = args[++i];
+                    break;
+                case "--files" :
+                    filesList = args[++i];
+                    break;
+                case "--merge" :
+                    mergeDir = args[++i];
+                    break;
+                default :
+                    // key=value parameters are applied after the properties file
+                    if (!arg.contains("=")) {
+                        System.out.println(USAGE);
+                        return(2);
+                    }
+                    break;
+            }
+        }
+
+        if (mergeDir != null) {
+            merge(mergeDir);
+            return(0);
+        }
+        if (imgDir == null || outDir == null) {
+            System.out.println(USAGE);
+            return(2);
+        }
+        imgDir = imgDir.endsWith(File.separator) ? imgDir : imgDir + File.separator;
+        outDir = outDir.endsWith(File.separator) ? outDir : outDir + File.separator;
+
+        if (paramsFile != null) {
+            try (FileReader reader = new FileReader(paramsFile)) {
+                props.load(reader);
+            }
+        }
+        for (String arg: args) {
+            if (!arg.startsWith("--") && arg.contains("="))
+                props.setProperty(arg.substring(0, arg.indexOf('=')).trim(), arg.substring(arg.indexOf('=') + 1).trim());
+        }
+
+        // Find images of the folder, then keep those of this shard
+        String fileExt = tools.findImageType(new File(imgDir));
+        ArrayList<String> imgFiles = tools.findImages(imgDir, fileExt);
+        String part = "";
+        if (shard != null) {
+            String[] kN = shard.split("/");
+            int k = Integer.parseInt(kN[0]);
+            int n = Integer.parseInt(kN[1]);
+            if (k < 0 || k >= n)
+                throw new IllegalArgumentException("Shard " + shard + " should be k/N with 0 <= k < N");
+            int size = imgFiles.size();
+            imgFiles = new ArrayList<>(imgFiles.subList((int) ((long) k * size / n), (int) ((long) (k + 1) * size / n)));
+            part = "_part" + k;
+        } else if (filesList != null) {
+            ArrayList<String> listed = new ArrayList<>();
+            for (String line: Files.readAllLines(Paths.get(filesList))) {
+                String name = line.trim();
+                if (name.isEmpty())
+                    continue;
+                File f = new File(name).isAbsolute() ? new File(name) : new File(imgDir, name);
+                listed.add(imgFiles.contains(f.getPath()) ? f.getPath() : imgDir + f.getName());
+            }
+            listed.retainAll(imgFiles);
+            imgFiles = listed;
+            part = "_" + new File(filesList).getName().replaceFirst("\\.[^.]*$", "");
+        }
+        if (imgFiles.isEmpty()) {
+            System.out.println("No image to analyze in " + imgDir);
+            return(0);
+        }
+
+        // Instantiate metadata and reader
+        IMetadata meta = MetadataTools.createOMEXMLMetadata();
+        ImageProcessorReader reader = new ImageProcessorReader();
+        reader.setMetadataStore(meta);
+        reader.setId(imgFiles.get(0));
+        tools.findImageCalib(meta);
+        String[] chMeta = tools.findChannels(imgFiles.get(0), meta, reader);
+
+        String[] chOrder = tools.readParameters(props, chMeta);
+        int[] chIndexes = {ArrayUtils.indexOf(chMeta, chOrder[0]), ArrayUtils.indexOf(chMeta, chOrder[1])};
+        Parameters params = tools.getParameters(chIndexes);
+
+        new File(outDir).mkdirs();
+        tools.print("Analyzing " + imgFiles.size() + " image(s), results saved in " + outDir);
+
+        // Each shard writes its own results and manifest, merged afterwards
+        // Output folder is given, so previous results of this shard are dropped unless resuming
+        String manifestName = "manifest" + part + ".tsv";
+        String resultsName = "results" + part + ".csv";
+        String timingsName = "timings" + part + ".csv";
+        if (!params.resume) {
+            Files.deleteIfExists(Paths.get(outDir, manifestName));
+            Files.deleteIfExists(Paths.get(outDir, resultsName));
+            Files.deleteIfExists(Paths.get(outDir, timingsName));
+        } else if (!BatchManifest.sameParameters(outDir, manifestName, params.hash())) {
+            System.out.println("Results in " + outDir + " were computed with other parameters, cannot resume: use another --out folder");
+            reader.close();
+            return(2);
+        }
+        BatchManifest manifest = new BatchManifest(outDir, manifestName, params.hash(), OverlayWriter.overlayExtension(params));
+        BufferedWriter results = manifest.openResults(resultsName, params.isSweep() ? ParameterSweep.HEADER : NucleiTable.HEADER);
+        BufferedWriter timings = manifest.openResults(timingsName, StageTimings.HEADER);
+        new BatchProcessor(tools, params, reader, meta).process(manifest.remaining(imgFiles), outDir, results, timings, manifest);
+        results.close();
+        timings.close();
+        manifest.close();
+        reader.close();
+        StageTimings.summarize(new File(outDir, timingsName), new File(outDir, "timings" + part + ".json"), tools);
+        tools.print("--- All done! ---");
+        return(0);
+    }
+
+
+    /**
+     * Merge results_part*.csv into results.csv, timings_part*.csv into timings.csv and manifest_part*.tsv into manifest.tsv
+     * Results and timings rows are sorted by image name, as in a single run, timings are summarized for the whole batch
+     */
+    public void merge(String outDir) throws IOException {
+        File dir = new File(outDir);
+        mergeParts(dir, "results", ".csv", true);
+        mergeParts(dir, "timings", ".csv", true);
+        mergeParts(dir, "manifest", ".tsv", false);
+        if (new File(dir, "timings.csv").exists())
+            StageTimings.summarize(new File(dir, "timings.csv"), new File(dir, "timings.json"), tools);
+        tools.print("Results merged in " + new File(dir, "results.csv").getPath());
+    }
+
+
+    private void mergeParts(File dir, String prefix, String ext, boolean hasHeader) throws IOException {
+        File[] parts = dir.listFiles(f -> f.getName().startsWith(prefix + "_") && f.getName().endsWith(ext));
+        if (parts == null || parts.length == 0)
+            return;
+        Arrays.sort(parts);
+
+        String header = null;
+        List<String> rows = new ArrayList<>();
+        for (File part: parts) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(part))) {
+                if (hasHeader) {
+                    String partHeader = reader.readLine();
+                    header = (header == null) ? partHeader : header;
+                }
+                for (String line = reader.readLine(); line != null; line = reader.readLine())
+                    rows.add(line);
+            }
+        }
+        if (hasHeader) {
+            // Stable sort keeps nuclei order of each image
+            rows.sort((a, b) -> a.substring(0, Math.max(0, a.indexOf('\t'))).compareTo(b.substring(0, Math.max(0, b.indexOf('\t')))));
+        }
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(dir, prefix + ext), false))) {
+            if (header != null)
+                writer.write(header + "\n");
+            for (String row: rows)
+                writer.write(row + "\n");
+        }
+    }
+}
@@ -18,6 +18,32 @@ import ij.IJ;
 public class Cellpose {
 
     static void execute(List<String> options, CellposeTaskSettings settings, Consumer<InputStream> outputHandler) throws IOException, InterruptedException {
+        List<String> pythonArgs = new ArrayList<>(Arrays.asList("-m", "cellpose"));
+        pythonArgs.addAll(options);
+        List<String> cmd = command(pythonArgs, settings);
+
+        System.out.println(cmd.toString().replace(",", ""));
+        ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
+
+        Process p = pb.start();
+        printOutput(p.getInputStream(), Thread.currentThread().getName() + "-" + p.hashCode());
+
+        p.waitFor();
+
+        int exitValue = p.exitValue();
+
+        if (exitValue != 0) {
+            System.out.println("Runner " + settings.cellposeEnvDirectory + " exited with value " + exitValue + ". Please check output above for indications of the problem.");
+        } else {
+            System.out.println(settings.envType + " , " + settings.cellposeEnvDirectory + " run finished");
+        }
+
+    }
+
+    /**
+     * Build the command running the python of the Cellpose env with the given arguments
+     */
+    static List<String> command(List<String> pythonArgs, CellposeTaskSettings settings) {
         List<String> cmd = new ArrayList<>();
         List<String> start_cmd = null ;
 
@@ -40,15 +66,15 @@ public class Cellpose {
                 cmd.addAll(conda_activate_cmd);
                 // After starting the env we can now use cellpose
                 cmd.add("&");// to have a second command
-                List<String> cellpose_args_cmd = Arrays.asList("python", "-Xutf8", "-m", "cellpose");
+                List<String> cellpose_args_cmd = Arrays.asList("python", "-Xutf8");
                 cmd.addAll(cellpose_args_cmd);
                 // input options
-                cmd.addAll(options);
+                cmd.addAll(pythonArgs);
             } else if (IJ.isMacOSX() || IJ.isLinux()) {
                 // instead of conda activate (so much headache!!!) specify the python to use
                 String python_path = settings.cellposeEnvDirectory+separatorChar+"bin"+separatorChar+"python";
-                List<String> cellpose_args_cmd = new ArrayList<>(Arrays.asList( python_path , "-m","cellpose"));
-                cellpose_args_cmd.addAll(options);
+                List<String> cellpose_args_cmd = new ArrayList<>(Arrays.asList(python_path));
+                cellpose_args_cmd.addAll(pythonArgs);
 
                 // convert to a string
                 cellpose_args_cmd = cellpose_args_cmd.stream().map(s -> {
@@ -76,14 +102,17 @@ public class Cellpose {
             throw new UnsupportedOperationException("Virtual env type unrecognized!");
         }
 
-        System.out.println(cmd.toString().replace(",", ""));
-        ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
+        return cmd;
+    }
 
-        Process p = pb.start();
-        Thread t = new Thread(Thread.currentThread().getName() + "-" + p.hashCode()) {
+    /**
+     * Print the output of a Cellpose process in the console from a daemon thread
+     */
+    static void printOutput(InputStream output, String threadName) {
+        Thread t = new Thread(threadName) {
             @Override
             public void run() {
-                BufferedReader stdIn = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                BufferedReader stdIn = new BufferedReader(new InputStreamReader(output));
                 try {
                     for (String line = stdIn.readLine(); line != null; ) {
                         System.out.println(line);
@@ -96,17 +125,6 @@ public class Cellpose {
         };
         t.setDaemon(true);
         t.start();
-
-        p.waitFor();
-
-        int exitValue = p.exitValue();
-
-        if (exitValue != 0) {
-            System.out.println("Runner " + settings.cellposeEnvDirectory + " exited with value " + exitValue + ". Please check output above for indications of the problem.");
-        } else {
-            System.out.println(settings.envType + " , " + settings.cellposeEnvDirectory + " run finished");
-        }
-
     }
 
 }
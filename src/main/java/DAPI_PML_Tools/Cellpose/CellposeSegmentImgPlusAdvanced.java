@@ -3,51 +3,68 @@ package DAPI_PML_Tools.Cellpose;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.io.FileSaver;
-import ij.measure.Calibration;
 import ij.plugin.Concatenator;
 import ij.plugin.Duplicator;
 import ij.process.ImageConverter;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import org.apache.commons.io.FileUtils;
 
 public class CellposeSegmentImgPlusAdvanced {
     
     CellposeTaskSettings settings;
-    ImagePlus imp;
-    ImagePlus cellpose_imp;
+    List<ImagePlus> imps;
     
     public CellposeSegmentImgPlusAdvanced(CellposeTaskSettings settings, ImagePlus imp) {
+        this(settings, Arrays.asList(imp));
+    }
+    
+    /**
+     * Segment several images with a single Cellpose invocation (model is loaded once for all of them)
+     */
+    public CellposeSegmentImgPlusAdvanced(CellposeTaskSettings settings, List<ImagePlus> imps) {
         this.settings = settings;
-        this.imp = imp;
+        this.imps = imps;
     }
     
     public ImagePlus run() {
+        return runAll().get(0);
+    }
+    
+    /**
+     * Return the Cellpose masks of each image, in the order of the images (null if Cellpose failed)
+     */
+    public List<ImagePlus> runAll() {
         
-        Calibration cal = imp.getCalibration();
-
-        // Create temp folder to temporarily save the current time-point of the imp
-        String tempDir = IJ.getDirectory("Temp");
-        File cellposeTempDir = new File(tempDir, "cellposeTemp");
-        cellposeTempDir.mkdir();
+        List<ImagePlus> cellpose_imps = new ArrayList<>(Collections.nCopies(imps.size(), (ImagePlus) null));
 
-        // When plugin crashes, image files can pile up in the temp folder, so we make sure to clear everything
-        File[] contents = cellposeTempDir.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                f.delete();
-            }
+        // Create a unique temp folder to temporarily save the current time-point of the imp,
+        // so that parallel calls (in this JVM or in other Fiji instances) never touch each other's files
+        File cellposeTempDir;
+        try {
+            cellposeTempDir = Files.createTempDirectory(Paths.get(IJ.getDirectory("Temp")), "cellposeTemp-").toFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return cellpose_imps;
         }
 
-        // Add temp folder to the settings
+        // Add temp folder to a copy of the settings, settings may be shared by parallel calls
+        CellposeTaskSettings settings = this.settings.copy();
         settings.setDatasetDir(cellposeTempDir.toString());
 
 
         if (settings.use3D == true) {
-            if (imp.getNSlices() == 1) 
+            if (imps.stream().anyMatch(imp -> imp.getNSlices() == 1)) {
                 System.out.println("WARNING: Can't use 3D mode on 2D image. 2D mode will be used");
                 settings.use3D(false);
+            }
         }
 
         // Settings are done, we can now process the imp with Cellpose
@@ -55,70 +72,79 @@ public class CellposeSegmentImgPlusAdvanced {
         cellposeTask.setSettings(settings);
         
         try {
-            // Can't process time-lapse directly, so we'll save one time-point after another
-            int impFrames = imp.getNFrames();
+            // We'll use lists to store paths of output masks
+            List<List<File>> cellpose_masks_paths = new ArrayList<>();
 
-            // We'll use lists to store paths of saved input, output masks and outlines
-            List<File> t_imp_paths = new ArrayList<>();
-            List<File> cellpose_masks_paths = new ArrayList<>();
-            List<File> cellpose_outlines_paths = new ArrayList<>();
+            for (int i = 0; i < imps.size(); i++) {
+                ImagePlus imp = imps.get(i);
+                // Prefix file names with the image index, so that images with the same title don't overwrite each other
+                String name = i + "_" + imp.getShortTitle();
+                // Can't process time-lapse directly, so we'll save one time-point after another
+                int impFrames = imp.getNFrames();
+                List<File> imp_masks_paths = new ArrayList<>();
+                cellpose_masks_paths.add(imp_masks_paths);
 
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                // Duplicate all channels and all z-slices for a defined time-point
-                ImagePlus t_imp = new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t_idx, t_idx);
-                // Save the current t_imp into the cellposeTempDir
-                File t_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + ".tif");
-                FileSaver fs = new FileSaver(t_imp);
-                fs.saveAsTiff(t_imp_path.toString());
-                System.out.println(t_imp_path.toString());
-                // Add to list of paths to delete at the end of operations
-                t_imp_paths.add(t_imp_path);
+                for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
+                    // Duplicate all channels and all z-slices for a defined time-point
+                    ImagePlus t_imp = new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t_idx, t_idx);
+                    // Save the current t_imp into the cellposeTempDir
+                    File t_imp_path = new File(cellposeTempDir, name + "-t" + t_idx + ".tif");
+                    FileSaver fs = new FileSaver(t_imp);
+                    fs.saveAsTiff(t_imp_path.toString());
+                    System.out.println(t_imp_path.toString());
 
-                // Prepare path of the cellpose mask output
-                File cellpose_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_masks" + ".tif");
-                cellpose_masks_paths.add(cellpose_imp_path);
-                // Cellpose also creates a txt file (probably to be used with a script to import ROI in imagej), so we'll delete it too
-                // (to generate ROIs from the label image we can use https://github.com/BIOP/ijp-larome)
-                File cellpose_outlines_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_outlines" + ".txt");
-                cellpose_outlines_paths.add(cellpose_outlines_path);
+                    // Prepare path of the cellpose mask output
+                    // (Cellpose also creates a _cp_outlines.txt file, deleted with the temp folder)
+                    File cellpose_imp_path = new File(cellposeTempDir, name + "-t" + t_idx + "_cp_masks" + ".tif");
+                    imp_masks_paths.add(cellpose_imp_path);
+                }
             }
 
-            // Run CellPose
+            // Run CellPose once for all images
             cellposeTask.run();
 
-            // Open all the cellpose_mask and store each imp within an ArrayList
-            ArrayList<ImagePlus> imps = new ArrayList<>(impFrames);
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                ImagePlus cellpose_t_imp = IJ.openImage(cellpose_masks_paths.get(t_idx - 1).toString());
-                // make sure to make a 16-bit imp
-                // (issue with time-lapse, first frame have less than 254 objects and latest have more)
-                if (cellpose_t_imp.getBitDepth() != 16) {
-                    if (cellpose_t_imp.getNSlices() > 1) {
-                        new ImageConverter(cellpose_t_imp).convertToGray16();
-                    } else {
-                        cellpose_t_imp.setProcessor(cellpose_t_imp.getProcessor().convertToShort(false));
-                    }
-                }
-                imps.add(cellpose_t_imp.duplicate());
-            }
-            // Convert the ArrayList to an imp
-            // https://stackoverflow.com/questions/9572795/convert-list-to-array-in-java
-            ImagePlus[] impsArray = imps.toArray(new ImagePlus[0]);
-            cellpose_imp = Concatenator.run(impsArray);
-            cellpose_imp.setCalibration(cal);
-            cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
+            // An image without masks failed, the other images of the invocation are still read
+            for (int i = 0; i < imps.size(); i++)
+                cellpose_imps.set(i, openMasks(imps.get(i), cellpose_masks_paths.get(i)));
 
-            // Delete the created files and folder
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                t_imp_paths.get(t_idx - 1).delete();
-                cellpose_masks_paths.get(t_idx - 1).delete();
-                cellpose_outlines_paths.get(t_idx - 1).delete();
-            }
-            cellposeTempDir.delete();
-       
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            // Delete the created files and folder, even if Cellpose failed
+            FileUtils.deleteQuietly(cellposeTempDir);
+        }
+        return cellpose_imps;
+    }
+    
+    /**
+     * Open the Cellpose masks of each time-point of the image as a single 16-bit imp (null if a mask is missing)
+     */
+    private ImagePlus openMasks(ImagePlus imp, List<File> imp_masks_paths) {
+        // Open all the cellpose_mask of the image and store each imp within an ArrayList
+        ArrayList<ImagePlus> t_imps = new ArrayList<>(imp_masks_paths.size());
+        for (File mask_path: imp_masks_paths) {
+            ImagePlus cellpose_t_imp = IJ.openImage(mask_path.toString());
+            if (cellpose_t_imp == null) {
+                System.out.println("Cellpose failed on " + imp.getTitle() + ", mask not found: " + mask_path);
+                return null;
+            }
+            // make sure to make a 16-bit imp
+            // (issue with time-lapse, first frame have less than 254 objects and latest have more)
+            if (cellpose_t_imp.getBitDepth() != 16) {
+                if (cellpose_t_imp.getNSlices() > 1) {
+                    new ImageConverter(cellpose_t_imp).convertToGray16();
+                } else {
+                    cellpose_t_imp.setProcessor(cellpose_t_imp.getProcessor().convertToShort(false));
+                }
+            }
+            t_imps.add(cellpose_t_imp.duplicate());
         }
+        // Convert the ArrayList to an imp
+        // https://stackoverflow.com/questions/9572795/convert-list-to-array-in-java
+        ImagePlus[] impsArray = t_imps.toArray(new ImagePlus[0]);
+        ImagePlus cellpose_imp = Concatenator.run(impsArray);
+        cellpose_imp.setCalibration(imp.getCalibration());
+        cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
         return cellpose_imp;
     }
-}
\ No newline at end of file
+}
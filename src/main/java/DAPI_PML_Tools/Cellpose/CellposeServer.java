@@ -0,0 +1,381 @@
+package DAPI_PML_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Long-lived Cellpose worker: the Python process and the model are loaded once per batch,
+ * then images are sent through the process stdin and label masks are read back from its stdout
+ * (see cellpose_server.py for the protocol)
+ * By default, pixels and labels are exchanged as raw arrays in a memory-mapped file (in /dev/shm when available),
+ * only the requests go through the pipe
+ * The worker is restarted if it dies, an image it fails to segment (ERR reply) does not restart it
+ */
+public class CellposeServer implements AutoCloseable {
+
+    /**
+     * Error reported by a live worker (ERR reply): the image failed, the worker is still usable
+     */
+    public static class WorkerError extends IOException {
+        public WorkerError(String message) {
+            super(message);
+        }
+    }
+
+    CellposeTaskSettings settings;
+    boolean fake;
+    File script;
+    Process process;
+    OutputStream toServer;
+    DataInputStream fromServer;
+
+    // Memory-mapped exchange file, reused for all images and grown when needed
+    static final int MAP_HEADER_SIZE = 32;
+    boolean sharedMemory = true;
+    File mapFile;
+    FileChannel mapChannel;
+    MappedByteBuffer mapped;
+
+    public CellposeServer(CellposeTaskSettings settings) {
+        this(settings, false);
+    }
+
+    /**
+     * @param fake if true, run the stand-in worker with the system python instead of Cellpose
+     */
+    public CellposeServer(CellposeTaskSettings settings, boolean fake) {
+        this.settings = settings;
+        this.fake = fake;
+    }
+
+
+    /**
+     * Start the worker and wait for the model to be loaded
+     */
+    synchronized void start() throws IOException {
+        if (script == null) {
+            script = File.createTempFile("cellpose_server", ".py");
+            script.deleteOnExit();
+            try (InputStream in = CellposeServer.class.getResourceAsStream("/cellpose_server.py")) {
+                Files.copy(in, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        List<String> args = new ArrayList<>(Arrays.asList("-u", script.getAbsolutePath(),
+                "--model", settings.model, "--diameter", "" + settings.diameter, "--chan", "" + settings.ch1, "--chan2", "" + settings.ch2,
+                "--flow_threshold", "" + settings.flow_threshold, "--cellprob_threshold", "" + settings.cellprob_threshold,
+                "--stitch_threshold", "" + settings.stitch_threshold));
+        if (settings.use3D)
+            args.add("--do_3D");
+        if (settings.useGpu)
+            args.add("--use_gpu");
+
+        List<String> cmd;
+        if (fake) {
+            args.add("--fake");
+            cmd = new ArrayList<>(Arrays.asList("python3"));
+            cmd.addAll(args);
+        } else {
+            cmd = Cellpose.command(args, settings);
+        }
+
+        System.out.println(cmd.toString().replace(",", ""));
+        process = new ProcessBuilder(cmd).start();
+        Cellpose.printOutput(process.getErrorStream(), "cellpose-server-" + process.hashCode());
+        toServer = new BufferedOutputStream(process.getOutputStream(), 1 << 20);
+        fromServer = new DataInputStream(new BufferedInputStream(process.getInputStream(), 1 << 20));
+
+        String line = readLine();
+        if (!"READY".equals(line)) {
+            stop();
+            throw new IOException("Cellpose server failed to start, please check output above for indications of the problem");
+        }
+        System.out.println("Cellpose server ready");
+    }
+
+
+    /**
+     * Stop the worker
+     */
+    synchronized void stop() {
+        if (process == null)
+            return;
+        try {
+            if (process.isAlive()) {
+                toServer.write("QUIT\n".getBytes(StandardCharsets.UTF_8));
+                toServer.flush();
+            }
+        } catch (IOException e) {
+            // worker already gone
+        }
+        process.destroy();
+        process = null;
+    }
+
+
+    /**
+     * Exchange pixels through a memory-mapped file (default) or through the pipe
+     */
+    public CellposeServer useSharedMemory(boolean sharedMemory) {
+        this.sharedMemory = sharedMemory;
+        return this;
+    }
+
+
+    @Override
+    public void close() {
+        stop();
+        if (script != null)
+            script.delete();
+        closeMap();
+    }
+
+
+    synchronized void closeMap() {
+        mapped = null;
+        if (mapChannel != null) {
+            try {
+                mapChannel.close();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+            mapChannel = null;
+        }
+        if (mapFile != null) {
+            if (!mapFile.delete())
+                mapFile.deleteOnExit();
+            mapFile = null;
+        }
+    }
+
+
+    /**
+     * Segment each time-point of the image, as CellposeSegmentImgPlusAdvanced does
+     */
+    public synchronized ImagePlus run(ImagePlus imp) throws IOException {
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        int slices = imp.getNSlices();
+        ImageStack masks = new ImageStack(width, height);
+        for (int t = 1; t <= imp.getNFrames(); t++) {
+            ImageProcessor[] planes = new ImageProcessor[slices];
+            for (int z = 1; z <= slices; z++)
+                planes[z-1] = imp.getStack().getProcessor(imp.getStackIndex(1, z, t));
+
+            short[][] labels;
+            try {
+                labels = segment(planes);
+            } catch (WorkerError e) {
+                throw e;
+            } catch (IOException e) {
+                // Worker died: restart it and retry once
+                // Otherwise the stream can't be trusted anymore: the worker is restarted for the next image, this one failed
+                boolean died = workerDied(e);
+                stop();
+                if (!died)
+                    throw e;
+                System.out.println("Cellpose server failed (" + e.getMessage() + "), restarting it");
+                labels = segment(planes);
+            }
+            for (short[] plane: labels)
+                masks.addSlice(new ShortProcessor(width, height, plane, null));
+        }
+
+        Calibration cal = imp.getCalibration();
+        ImagePlus cellpose_imp = new ImagePlus(imp.getShortTitle() + "-cellpose", masks);
+        cellpose_imp.setDimensions(1, slices, imp.getNFrames());
+        cellpose_imp.setCalibration(cal);
+        return cellpose_imp;
+    }
+
+
+    /**
+     * True if the exchange failed because the worker is gone (end of its output or broken pipe to its input)
+     * Other failures (unexpected answer, stream out of sync) are not retried
+     */
+    boolean workerDied(IOException e) {
+        String message = (e.getMessage() == null) ? "" : e.getMessage();
+        return(e instanceof EOFException || message.contains("Broken pipe") || message.contains("Stream closed")
+               || (process != null && !process.isAlive()));
+    }
+
+
+    /**
+     * Read the status line of an answer: ERR replies throw a WorkerError, the end of the stream an EOFException
+     */
+    String readAnswer() throws IOException {
+        String line = readLine();
+        if (line == null)
+            throw new EOFException("Cellpose server closed the connection");
+        if (line.startsWith("ERR"))
+            throw new WorkerError("Cellpose server error: " + line.substring(3).trim());
+        return line;
+    }
+
+
+    /**
+     * Send one z-stack to the worker and read its labels back
+     */
+    short[][] segment(ImageProcessor[] planes) throws IOException {
+        if (process == null || !process.isAlive())
+            start();
+        if (sharedMemory && mapped == null) {
+            try {
+                map(MAP_HEADER_SIZE);
+            } catch (IOException e) {
+                // Memory-mapped file can't be created, fall back to the pipe
+                System.out.println("Can't exchange images with Cellpose server through shared memory (" + e.getMessage() + "), using pipe instead");
+                sharedMemory = false;
+                closeMap();
+            }
+        }
+        // Images bigger than 2 GB can't be mapped at once, they go through the pipe
+        long mapSize = MAP_HEADER_SIZE + (long) planes[0].getPixelCount() * planes.length * 6 + 8;
+        if (sharedMemory && mapSize <= Integer.MAX_VALUE)
+            return segmentMapped(planes);
+
+        int width = planes[0].getWidth();
+        int height = planes[0].getHeight();
+        int planeSize = width * height;
+        String dtype = (planes[0] instanceof ByteProcessor) ? "u1" : (planes[0] instanceof ShortProcessor) ? "u2" : "f4";
+
+        toServer.write(("SEG " + width + " " + height + " " + planes.length + " " + dtype + "\n").getBytes(StandardCharsets.UTF_8));
+        for (ImageProcessor ip: planes) {
+            switch (dtype) {
+                case "u1" :
+                    toServer.write((byte[]) ip.getPixels());
+                    break;
+                case "u2" :
+                    ByteBuffer shortBuf = ByteBuffer.allocate(planeSize * 2).order(ByteOrder.LITTLE_ENDIAN);
+                    shortBuf.asShortBuffer().put((short[]) ip.getPixels());
+                    toServer.write(shortBuf.array());
+                    break;
+                default :
+                    ByteBuffer floatBuf = ByteBuffer.allocate(planeSize * 4).order(ByteOrder.LITTLE_ENDIAN);
+                    floatBuf.asFloatBuffer().put((float[]) ip.convertToFloat().getPixels());
+                    toServer.write(floatBuf.array());
+            }
+        }
+        toServer.flush();
+
+        String line = readAnswer();
+        String[] fields = line.split(" ");
+        if (!fields[0].equals("OK") || Integer.parseInt(fields[1]) != width || Integer.parseInt(fields[2]) != height || Integer.parseInt(fields[3]) != planes.length)
+            throw new IOException("Unexpected answer from Cellpose server: " + line);
+
+        short[][] labels = new short[planes.length][planeSize];
+        byte[] buffer = new byte[planeSize * 2];
+        for (short[] plane: labels) {
+            fromServer.readFully(buffer);
+            ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(plane);
+        }
+        return labels;
+    }
+
+
+    /**
+     * Write one z-stack in the memory-mapped file, let the worker segment it and read its labels back from the same file
+     */
+    short[][] segmentMapped(ImageProcessor[] planes) throws IOException {
+        int width = planes[0].getWidth();
+        int height = planes[0].getHeight();
+        int planeSize = width * height;
+        int dtype = (planes[0] instanceof ByteProcessor) ? 0 : (planes[0] instanceof ShortProcessor) ? 1 : 2;
+        int itemSize = (dtype == 0) ? 1 : (dtype == 1) ? 2 : 4;
+        long labelsOffset = MAP_HEADER_SIZE + (long) planeSize * planes.length * itemSize;
+        labelsOffset = (labelsOffset + 7) / 8 * 8;
+        ByteBuffer buf = map(labelsOffset + (long) planeSize * planes.length * 2);
+
+        buf.clear();
+        buf.put("DPML".getBytes(StandardCharsets.UTF_8)).putInt(1).putInt(width).putInt(height).putInt(planes.length)
+           .putInt(dtype).putInt((int) labelsOffset).putInt(0);
+        for (ImageProcessor ip: planes) {
+            switch (dtype) {
+                case 0 :
+                    buf.put((byte[]) ip.getPixels());
+                    break;
+                case 1 :
+                    buf.asShortBuffer().put((short[]) ip.getPixels());
+                    buf.position(buf.position() + planeSize * 2);
+                    break;
+                default :
+                    buf.asFloatBuffer().put((float[]) ip.convertToFloat().getPixels());
+                    buf.position(buf.position() + planeSize * 4);
+            }
+        }
+
+        toServer.write(("SEGMAP " + mapFile.getAbsolutePath() + "\n").getBytes(StandardCharsets.UTF_8));
+        toServer.flush();
+        String line = readAnswer();
+        if (!line.equals("OK " + width + " " + height + " " + planes.length + " u2"))
+            throw new IOException("Unexpected answer from Cellpose server: " + line);
+
+        short[][] labels = new short[planes.length][];
+        buf.position((int) labelsOffset);
+        for (int z = 0; z < planes.length; z++) {
+            labels[z] = new short[planeSize];
+            buf.asShortBuffer().get(labels[z]);
+            buf.position(buf.position() + planeSize * 2);
+        }
+        return labels;
+    }
+
+
+    /**
+     * Return the memory-mapped exchange file, growing it if it is smaller than size
+     */
+    MappedByteBuffer map(long size) throws IOException {
+        if (mapped != null && mapped.capacity() >= size)
+            return mapped;
+
+        if (mapFile == null) {
+            File shm = new File("/dev/shm");
+            mapFile = (shm.isDirectory() && shm.canWrite()) ? File.createTempFile("cellpose_server", ".raw", shm) : File.createTempFile("cellpose_server", ".raw");
+            mapFile.deleteOnExit();
+            mapChannel = FileChannel.open(mapFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        mapped = mapChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        return mapped;
+    }
+
+
+    /**
+     * Read a UTF-8 line of the protocol (ERR messages may hold non-ASCII paths), return null at end of stream
+     */
+    String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = fromServer.read()) != '\n') {
+            if (b == -1)
+                return line.size() == 0 ? null : line.toString("UTF-8");
+            line.write(b);
+        }
+        return line.toString("UTF-8").trim();
+    }
+}
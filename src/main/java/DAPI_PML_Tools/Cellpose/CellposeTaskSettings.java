@@ -33,6 +33,31 @@ public class CellposeTaskSettings {
         this.cellposeEnvDirectory = cellposeEnvDirectory;
     }
     
+    public CellposeTaskSettings copy() {
+        CellposeTaskSettings settings = new CellposeTaskSettings(model, ch1, diameter, cellposeEnvDirectory);
+        settings.datasetDir = datasetDir;
+        settings.ch2 = ch2;
+        settings.flow_threshold = flow_threshold;
+        settings.cellprob_threshold = cellprob_threshold;
+        settings.stitch_threshold = stitch_threshold;
+        settings.envType = envType;
+        settings.version = version;
+        settings.use3D = use3D;
+        settings.useGpu = useGpu;
+        settings.useFastMode = useFastMode;
+        settings.useResample = useResample;
+        settings.omni = omni;
+        settings.cluster = cluster;
+        settings.verbose = verbose;
+        return settings;
+    }
+    
+    // Settings changing the masks (environment, GPU and logs left out)
+    public String key() {
+        return model + "|" + ch1 + "|" + ch2 + "|" + diameter + "|" + flow_threshold + "|" + cellprob_threshold + "|" + stitch_threshold + "|"
+               + version + "|" + use3D + "|" + useFastMode + "|" + useResample + "|" + omni + "|" + cluster;
+    }
+    
     public CellposeTaskSettings setDatasetDir(String datasetDir) {
         this.datasetDir = datasetDir;
         return this;
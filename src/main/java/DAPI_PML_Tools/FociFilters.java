@@ -0,0 +1,456 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Pure Java, multi-threaded foci mask computation (DoG filtering + automatic thresholding + fill holes),
+ * used instead of CLIJ2 when no OpenCL device is available
+ * Each step follows the corresponding CLIJ2 operation, so that masks match the GPU ones within rounding differences
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class FociFilters {
+
+    private static final int HISTOGRAM_BINS = 256;
+
+    private final int nbThreads;
+    private final ForkJoinPool pool;
+
+
+    public FociFilters(int nbThreads) {
+        this.nbThreads = Math.max(1, nbThreads);
+        this.pool = new ForkJoinPool(this.nbThreads);
+    }
+
+
+    public int getNbThreads() {
+        return(nbThreads);
+    }
+
+
+    /**
+     * Binary mask (0/1) of foci: DoG filtering + automatic thresholding + fill holes
+     */
+    public ImagePlus fociMask(ImagePlus img, double sigma1, double sigma2, String thMethod) {
+        return(fociMask(differenceOfGaussian2D(img, sigma1, sigma2), img, thMethod));
+    }
+
+
+    /**
+     * Binary mask (0/1) of foci from the DoG planes of an image:
+     * automatic thresholding + fill holes
+     */
+    public ImagePlus fociMask(float[][] dog, ImagePlus img, String thMethod) {
+        return(fociMasks(dog, img, new String[]{thMethod}).getMask(0));
+    }
+
+
+    /**
+     * Binary masks (0/1) of foci from the DoG planes of an image, one per thresholding method (parameter sweep)
+     * Methods giving the same threshold share the same mask
+     */
+    public FociMasks fociMasks(float[][] dog, ImagePlus img, String[] thMethods) {
+        int width = img.getWidth(), height = img.getHeight(), depth = img.getStackSize();
+        float[] thresholds = thresholds(dog, thMethods, img.getBitDepth());
+        int[] maskOfMethod = new int[thMethods.length];
+        ArrayList<ImagePlus> imgMasks = new ArrayList<>();
+        for (int m = 0; m < thMethods.length; m++) {
+            int same = 0;
+            while (same < m && thresholds[same] != thresholds[m])
+                same++;
+            if (same < m) {
+                maskOfMethod[m] = maskOfMethod[same];
+                continue;
+            }
+            byte[][] mask = binarize(dog, thresholds[m]);
+            fillHoles(mask, width, height);
+            ImageStack stack = new ImageStack(width, height);
+            for (int z = 0; z < depth; z++)
+                stack.addSlice(new ByteProcessor(width, height, mask[z]));
+            ImagePlus imgMask = new ImagePlus(img.getTitle() + "_foci", stack);
+            imgMask.setDimensions(1, depth, 1);
+            imgMask.setCalibration(img.getCalibration());
+            maskOfMethod[m] = imgMasks.size();
+            imgMasks.add(imgMask);
+        }
+        return(new FociMasks(imgMasks.toArray(new ImagePlus[0]), maskOfMethod));
+    }
+
+
+    /**
+     * Difference of Gaussians in each plane (as CLIJ2 differenceOfGaussian2D)
+     * Result is converted back to the input bit depth, negative values are set to 0
+     */
+    public float[][] differenceOfGaussian2D(ImagePlus img, double sigma1, double sigma2) {
+        int width = img.getWidth(), height = img.getHeight(), depth = img.getStackSize();
+        ImageStack stack = img.getStack();
+        int bitDepth = img.getBitDepth();
+        float[] kernel1 = gaussianKernel(sigma1);
+        float[] kernel2 = gaussianKernel(sigma2);
+
+        float[][] dog = new float[depth][];
+        pool.submit(() -> IntStream.range(0, depth).parallel().forEach(z -> {
+            float[] plane = (float[]) stack.getProcessor(z+1).convertToFloatProcessor().getPixels();
+            float[] blur1 = blur(plane, width, height, kernel1);
+            float[] blur2 = blur(plane, width, height, kernel2);
+            for (int i = 0; i < plane.length; i++) {
+                float value = blur1[i] - blur2[i];
+                if (bitDepth == 8)
+                    value = Math.min(255, Math.max(0, (int) value));
+                else if (bitDepth == 16)
+                    value = Math.min(65535, Math.max(0, (int) value));
+                blur1[i] = value;
+            }
+            dog[z] = blur1;
+        })).join();
+        return(dog);
+    }
+
+
+    /**
+     * Radius of the Gaussian kernel of the given sigma: pixels further away do not change the blurred value
+     */
+    public static int kernelRadius(double sigma) {
+        int size = (int) (sigma * 8);
+        return(((size % 2 == 0) ? size + 1 : size) / 2);
+    }
+
+
+    /**
+     * Normalized Gaussian kernel, of same size as CLIJ2 ones
+     */
+    private static float[] gaussianKernel(double sigma) {
+        int radius = kernelRadius(sigma);
+        int size = 2 * radius + 1;
+        float[] kernel = new float[size];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = (float) Math.exp(-0.5 * i * i / (sigma * sigma));
+            sum += kernel[i + radius];
+        }
+        for (int i = 0; i < size; i++)
+            kernel[i] /= sum;
+        return(kernel);
+    }
+
+
+    /**
+     * Separable Gaussian blur of a plane, borders are extended with edge values
+     */
+    private static float[] blur(float[] plane, int width, int height, float[] kernel) {
+        int radius = kernel.length / 2;
+        float[] tmp = new float[plane.length];
+        float[] out = new float[plane.length];
+        IntStream.range(0, height).parallel().forEach(y -> {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int k = -radius; k <= radius; k++)
+                    sum += kernel[k + radius] * plane[row + Math.min(width-1, Math.max(0, x + k))];
+                tmp[row + x] = sum;
+            }
+        });
+        IntStream.range(0, height).parallel().forEach(y -> {
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int k = -radius; k <= radius; k++)
+                    sum += kernel[k + radius] * tmp[Math.min(height-1, Math.max(0, y + k)) * width + x];
+                out[y * width + x] = sum;
+            }
+        });
+        return(out);
+    }
+
+
+    /**
+     * Automatic thresholding of the whole stack (as CLIJ2 automaticThreshold):
+     * 256 bins histogram between min and max values (0 and 255 for 8-bit images), ImageJ AutoThresholder method
+     * on this histogram, voxels above the threshold bin are set to 1
+     */
+    public byte[][] threshold(float[][] planes, String thMethod, int bitDepth) {
+        return(binarize(planes, thresholds(planes, new String[]{thMethod}, bitDepth)[0]));
+    }
+
+
+    /**
+     * Threshold values of the whole stack for several methods, all taken from a single histogram
+     * (infinite if all values are the same)
+     */
+    private float[] thresholds(float[][] planes, String[] thMethods, int bitDepth) {
+        float[] thresholds = new float[thMethods.length];
+        Arrays.fill(thresholds, Float.POSITIVE_INFINITY);
+        float[] minMax = (bitDepth == 8) ? new float[]{0, 255} : minMax(planes);
+        if (minMax[1] > minMax[0]) {
+            float binWidth = (minMax[1] - minMax[0]) / (HISTOGRAM_BINS - 1);
+            int[] histogram = new int[HISTOGRAM_BINS];
+            addHistogram(histogram, planes, minMax[0], binWidth);
+            for (int m = 0; m < thMethods.length; m++)
+                thresholds[m] = thresholdValue(histogram, minMax[0], binWidth, thMethods[m]);
+        }
+        return(thresholds);
+    }
+
+
+    /**
+     * Min and max values of planes
+     */
+    private float[] minMax(float[][] planes) {
+        float[][] minMax = new float[planes.length][];
+        pool.submit(() -> IntStream.range(0, planes.length).parallel().forEach(z -> {
+            float planeMin = Float.POSITIVE_INFINITY, planeMax = Float.NEGATIVE_INFINITY;
+            for (float value: planes[z]) {
+                planeMin = Math.min(planeMin, value);
+                planeMax = Math.max(planeMax, value);
+            }
+            minMax[z] = new float[]{planeMin, planeMax};
+        })).join();
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for (float[] planeMinMax: minMax) {
+            min = Math.min(min, planeMinMax[0]);
+            max = Math.max(max, planeMinMax[1]);
+        }
+        return(new float[]{min, max});
+    }
+
+
+    /**
+     * Add 256 bins histogram of planes to the given one, with partial histograms of each plane merged
+     */
+    private void addHistogram(int[] histogram, float[][] planes, float min, float binWidth) {
+        int[][] partials = new int[planes.length][];
+        pool.submit(() -> IntStream.range(0, planes.length).parallel().forEach(z -> {
+            int[] hist = new int[HISTOGRAM_BINS];
+            for (float value: planes[z])
+                hist[bin(value, min, binWidth)]++;
+            partials[z] = hist;
+        })).join();
+        for (int[] partial: partials)
+            for (int b = 0; b < HISTOGRAM_BINS; b++)
+                histogram[b] += partial[b];
+    }
+
+
+    private static int bin(float value, float min, float binWidth) {
+        return(Math.min(HISTOGRAM_BINS-1, Math.max(0, (int) ((value - min) / binWidth))));
+    }
+
+
+    /**
+     * Threshold value given by the AutoThresholder method on the 256 bins histogram
+     */
+    private static float thresholdValue(int[] histogram, float min, float binWidth, String thMethod) {
+        int thBin = new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(thMethod), histogram.clone());
+        return(thBin * binWidth + min);
+    }
+
+
+    /**
+     * Set voxels above threshold to 1
+     */
+    private byte[][] binarize(float[][] planes, float threshold) {
+        byte[][] mask = new byte[planes.length][];
+        pool.submit(() -> IntStream.range(0, planes.length).parallel().forEach(z -> {
+            byte[] planeMask = new byte[planes[z].length];
+            for (int i = 0; i < planeMask.length; i++)
+                planeMask[i] = (byte) ((planes[z][i] > threshold) ? 1 : 0);
+            mask[z] = planeMask;
+        })).join();
+        return(mask);
+    }
+
+
+    /**
+     * Binary mask (0/1) of foci, reading planes on demand by chunks of one plane per thread
+     * DoG is computed in 2D, so chunks need no halo in Z. The float DoG stack is never kept:
+     * - integer images: each chunk is filtered once, its DoG is kept in the input bit depth (lossless, DoG values are
+     *   rounded and clamped) while building the histogram, then binarized plane by plane
+     * - float images: each chunk is filtered for min and max, for the histogram, then to be thresholded
+     */
+    public ImagePlus fociMask(PlaneReader planes, double sigma1, double sigma2, String thMethod) throws IOException {
+        int width = planes.getWidth(), height = planes.getHeight(), size = planes.getSize();
+        int bitDepth = planes.getBitDepth();
+
+        float[] minMax;
+        int[] histogram = new int[HISTOGRAM_BINS];
+        byte[][] mask = new byte[size][];
+        // 8-bit DoG planes are kept in mask planes and binarized in place, 16-bit ones here
+        short[][] dog16 = (bitDepth == 16) ? new short[size][] : null;
+        if (bitDepth == 32) {
+            // Float values: one pass for min and max, one pass for the histogram
+            minMax = new float[]{Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+            for (int from = 0; from < size; from += nbThreads) {
+                float[] chunkMinMax = minMax(dogChunk(planes, from, sigma1, sigma2));
+                minMax[0] = Math.min(minMax[0], chunkMinMax[0]);
+                minMax[1] = Math.max(minMax[1], chunkMinMax[1]);
+            }
+            if (minMax[1] > minMax[0]) {
+                for (int from = 0; from < size; from += nbThreads)
+                    addHistogram(histogram, dogChunk(planes, from, sigma1, sigma2), minMax[0], (minMax[1] - minMax[0]) / (HISTOGRAM_BINS - 1));
+            }
+        } else {
+            // Integer values: exact histogram of DoG values in one pass, rebinned in 256 bins once min and max are known
+            long[] values = new long[1 << bitDepth];
+            for (int from = 0; from < size; from += nbThreads) {
+                float[][] dog = dogChunk(planes, from, sigma1, sigma2);
+                int first = from;
+                int[][] partials = new int[dog.length][];
+                pool.submit(() -> IntStream.range(0, dog.length).parallel().forEach(z -> {
+                    int[] hist = new int[values.length];
+                    float[] plane = dog[z];
+                    if (bitDepth == 8) {
+                        byte[] dogPlane = new byte[plane.length];
+                        for (int i = 0; i < plane.length; i++) {
+                            hist[(int) plane[i]]++;
+                            dogPlane[i] = (byte) plane[i];
+                        }
+                        mask[first + z] = dogPlane;
+                    } else {
+                        short[] dogPlane = new short[plane.length];
+                        for (int i = 0; i < plane.length; i++) {
+                            hist[(int) plane[i]]++;
+                            dogPlane[i] = (short) plane[i];
+                        }
+                        dog16[first + z] = dogPlane;
+                    }
+                    partials[z] = hist;
+                })).join();
+                for (int[] partial: partials)
+                    for (int v = 0; v < values.length; v++)
+                        values[v] += partial[v];
+            }
+            int minValue = 0, maxValue = values.length - 1;
+            if (bitDepth != 8) {
+                while (minValue < maxValue && values[minValue] == 0)
+                    minValue++;
+                while (maxValue > minValue && values[maxValue] == 0)
+                    maxValue--;
+            }
+            minMax = new float[]{minValue, maxValue};
+            if (minMax[1] > minMax[0]) {
+                float binWidth = (minMax[1] - minMax[0]) / (HISTOGRAM_BINS - 1);
+                for (int v = minValue; v <= maxValue; v++)
+                    histogram[bin(v, minMax[0], binWidth)] += values[v];
+            }
+        }
+
+        float threshold = Float.POSITIVE_INFINITY;
+        if (minMax[1] > minMax[0])
+            threshold = thresholdValue(histogram, minMax[0], (minMax[1] - minMax[0]) / (HISTOGRAM_BINS - 1), thMethod);
+        if (bitDepth == 32) {
+            for (int from = 0; from < size; from += nbThreads) {
+                byte[][] chunkMask = binarize(dogChunk(planes, from, sigma1, sigma2), threshold);
+                System.arraycopy(chunkMask, 0, mask, from, chunkMask.length);
+            }
+        } else {
+            float th = threshold;
+            pool.submit(() -> IntStream.range(0, size).parallel().forEach(z -> {
+                if (bitDepth == 8) {
+                    byte[] planeMask = mask[z];
+                    for (int i = 0; i < planeMask.length; i++)
+                        planeMask[i] = (byte) (((planeMask[i] & 0xff) > th) ? 1 : 0);
+                } else {
+                    byte[] planeMask = new byte[dog16[z].length];
+                    for (int i = 0; i < planeMask.length; i++)
+                        planeMask[i] = (byte) (((dog16[z][i] & 0xffff) > th) ? 1 : 0);
+                    mask[z] = planeMask;
+                    dog16[z] = null;
+                }
+            })).join();
+        }
+        fillHoles(mask, width, height);
+
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < size; z++)
+            stack.addSlice(new ByteProcessor(width, height, mask[z]));
+        ImagePlus imgMask = new ImagePlus(planes.getTitle() + "_foci", stack);
+        imgMask.setDimensions(1, planes.getNSlices(), size / planes.getNSlices());
+        imgMask.setCalibration(planes.getCalibration());
+        return(imgMask);
+    }
+
+
+    /**
+     * DoG of the chunk of planes starting at the given one
+     */
+    private float[][] dogChunk(PlaneReader planes, int from, double sigma1, double sigma2) throws IOException {
+        ImageStack chunk = planes.getPlanes(from, Math.min(planes.getSize(), from + nbThreads));
+        return(differenceOfGaussian2D(new ImagePlus(planes.getTitle(), chunk), sigma1, sigma2));
+    }
+
+
+    /**
+     * Fill holes of a binary mask (as CLIJ2 binaryFillHoles): background regions not connected to the image borders
+     * are set to 1, in 2D for a single plane and in 3D otherwise (6-connected background)
+     */
+    public void fillHoles(byte[][] mask, int width, int height) {
+        int depth = mask.length;
+        int planeSize = width * height;
+        int[] queue = new int[1024];
+        int head = 0, tail = 0;
+
+        // Seeds are background voxels on the borders, marked as 2 once reached
+        for (int z = 0; z < depth; z++) {
+            boolean zBorder = depth > 1 && (z == 0 || z == depth-1);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (!zBorder && x > 0 && y > 0 && x < width-1 && y < height-1)
+                        continue;
+                    int i = y * width + x;
+                    if (mask[z][i] == 0) {
+                        mask[z][i] = 2;
+                        if (tail == queue.length)
+                            queue = Arrays.copyOf(queue, queue.length * 2);
+                        queue[tail++] = z * planeSize + i;
+                    }
+                }
+            }
+        }
+
+        // Flood fill of the background reachable from the borders
+        int[] dx = {-1, 1, 0, 0, 0, 0};
+        int[] dy = {0, 0, -1, 1, 0, 0};
+        int[] dz = {0, 0, 0, 0, -1, 1};
+        while (head < tail) {
+            int index = queue[head++];
+            int z = index / planeSize, i = index % planeSize;
+            int x = i % width, y = i / width;
+            for (int n = 0; n < 6; n++) {
+                int nx = x + dx[n], ny = y + dy[n], nz = z + dz[n];
+                if (nx < 0 || ny < 0 || nz < 0 || nx >= width || ny >= height || nz >= depth)
+                    continue;
+                int ni = ny * width + nx;
+                if (mask[nz][ni] == 0) {
+                    mask[nz][ni] = 2;
+                    // Queue is compacted before growing, processed voxels are not needed anymore
+                    if (tail == queue.length) {
+                        if (head > queue.length / 2) {
+                            System.arraycopy(queue, head, queue, 0, tail - head);
+                            tail -= head;
+                            head = 0;
+                        } else
+                            queue = Arrays.copyOf(queue, queue.length * 2);
+                    }
+                    queue[tail++] = nz * planeSize + ni;
+                }
+            }
+        }
+
+        pool.submit(() -> IntStream.range(0, depth).parallel().forEach(z -> {
+            byte[] plane = mask[z];
+            for (int i = 0; i < plane.length; i++)
+                plane[i] = (byte) ((plane[i] == 2) ? 0 : 1);
+        })).join();
+    }
+
+
+    public void close() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,179 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+/**
+ * Foci mask computation (DoG filtering + automatic thresholding + fill holes) in a single CLIJ2 stage:
+ * the PML image is pushed once, intermediate results stay on the device and only the final binary mask is pulled back
+ * Device buffers and host staging array are kept between images of the same size and type
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class FociGpuPipeline {
+
+    private final CLIJ2 clij2;
+
+    // Pooled buffers, for the last image size and type
+    private long[] dims;
+    private NativeTypeEnum type;
+    private ClearCLBuffer input, dog, binary, mask;
+    private Buffer hostBuffer;
+
+
+    public FociGpuPipeline(CLIJ2 clij2) {
+        this.clij2 = clij2;
+    }
+
+
+    /**
+     * Binary mask (0/1, 8-bit) of foci, same operations as Tools.DOG, Tools.threshold and Tools.fillHoles
+     * Calls to the shared CLIJ2 instance are serialized
+     */
+    public ImagePlus fociMask(ImagePlus img, double sigma1, double sigma2, String thMethod) {
+        synchronized (clij2) {
+            allocate(img, true);
+            push(img.getStack(), input);
+            clij2.differenceOfGaussian2D(input, dog, sigma1, sigma1, sigma2, sigma2);
+            return(thresholdDog(img, thMethod));
+        }
+    }
+
+
+    /**
+     * Binary masks (0/1, 8-bit) of foci from the DoG planes of the image (TileGrid.stitch of Tools.DOG with a single tile),
+     * one per thresholding method (parameter sweep)
+     * The DoG is pushed in the DoG buffer once, with the image type as Tools.DOG gives, no input buffer is needed, each method is thresholded and filled on the device as in fociMask
+     * Methods giving the same mask share it
+     */
+    public FociMasks fociMasks(float[][] dogPlanes, ImagePlus img, String[] thMethods) {
+        ImageStack stack = new ImageStack(img.getWidth(), img.getHeight());
+        for (float[] plane: dogPlanes) {
+            FloatProcessor ip = new FloatProcessor(img.getWidth(), img.getHeight(), plane);
+            // DoG values of integer images are already rounded and clamped by Tools.DOG
+            stack.addSlice((img.getBitDepth() == 8) ? ip.convertToByteProcessor(false)
+                         : (img.getBitDepth() == 16) ? ip.convertToShortProcessor(false) : ip);
+        }
+        int[] maskOfMethod = new int[thMethods.length];
+        ArrayList<ImagePlus> masks = new ArrayList<>();
+        synchronized (clij2) {
+            allocate(img, false);
+            push(stack, dog);
+            for (int m = 0; m < thMethods.length; m++) {
+                ImagePlus imgMask = thresholdDog(img, thMethods[m]);
+                int same = 0;
+                while (same < masks.size() && !sameMask(masks.get(same), imgMask))
+                    same++;
+                if (same == masks.size())
+                    masks.add(imgMask);
+                maskOfMethod[m] = same;
+            }
+        }
+        return(new FociMasks(masks.toArray(new ImagePlus[0]), maskOfMethod));
+    }
+
+
+    private static boolean sameMask(ImagePlus mask1, ImagePlus mask2) {
+        for (int z = 1; z <= mask1.getStackSize(); z++) {
+            if (!Arrays.equals((byte[]) mask1.getStack().getPixels(z), (byte[]) mask2.getStack().getPixels(z)))
+                return(false);
+        }
+        return(true);
+    }
+
+
+    /**
+     * Threshold and fill holes of the DoG buffer, the mask is pulled back
+     */
+    private ImagePlus thresholdDog(ImagePlus img, String thMethod) {
+        clij2.automaticThreshold(dog, binary, thMethod);
+        clij2.binaryFillHoles(binary, mask);
+        ImagePlus imgMask = clij2.pull(mask);
+        imgMask.setTitle(img.getTitle() + "_foci");
+        imgMask.setDimensions(1, img.getStackSize(), 1);
+        imgMask.setCalibration(img.getCalibration());
+        return(imgMask);
+    }
+
+
+    /**
+     * Reuse pooled buffers if image has the same size and type as the previous one, allocate new ones otherwise
+     * DoG and thresholded images keep the input type, as in the step by step CLIJ2 calls
+     * The input buffer is only allocated when needed (not for a DoG computed by tiles)
+     */
+    private void allocate(ImagePlus img, boolean withInput) {
+        long[] imgDims = (img.getStackSize() > 1) ? new long[]{img.getWidth(), img.getHeight(), img.getStackSize()}
+                                                  : new long[]{img.getWidth(), img.getHeight()};
+        NativeTypeEnum imgType;
+        switch (img.getBitDepth()) {
+            case 8 :
+                imgType = NativeTypeEnum.UnsignedByte;
+                break;
+            case 16 :
+                imgType = NativeTypeEnum.UnsignedShort;
+                break;
+            case 32 :
+                imgType = NativeTypeEnum.Float;
+                break;
+            default :
+                throw new IllegalArgumentException("Unsupported bit depth " + img.getBitDepth() + " for PML image");
+        }
+        if (dog == null || !Arrays.equals(dims, imgDims) || type != imgType) {
+            release();
+            dims = imgDims;
+            type = imgType;
+            dog = clij2.create(dims, type);
+            binary = clij2.create(dims, type);
+            mask = clij2.create(dims, NativeTypeEnum.UnsignedByte);
+            int size = (int) (dog.getWidth() * dog.getHeight() * dog.getDepth());
+            hostBuffer = (type == NativeTypeEnum.UnsignedByte) ? ByteBuffer.allocate(size)
+                       : (type == NativeTypeEnum.UnsignedShort) ? ShortBuffer.allocate(size) : FloatBuffer.allocate(size);
+        }
+        if (withInput && input == null)
+            input = clij2.create(dims, type);
+    }
+
+
+    /**
+     * Copy all planes of the stack in the host staging buffer, then in a device buffer
+     */
+    private void push(ImageStack stack, ClearCLBuffer buffer) {
+        hostBuffer.clear();
+        for (int z = 1; z <= stack.getSize(); z++) {
+            Object pixels = stack.getPixels(z);
+            if (hostBuffer instanceof ByteBuffer)
+                ((ByteBuffer) hostBuffer).put((byte[]) pixels);
+            else if (hostBuffer instanceof ShortBuffer)
+                ((ShortBuffer) hostBuffer).put((short[]) pixels);
+            else
+                ((FloatBuffer) hostBuffer).put((float[]) pixels);
+        }
+        hostBuffer.rewind();
+        buffer.readFrom(hostBuffer, true);
+    }
+
+
+    /**
+     * Release pooled buffers
+     */
+    public void release() {
+        synchronized (clij2) {
+            for (ClearCLBuffer buffer: new ClearCLBuffer[]{input, dog, binary, mask}) {
+                if (buffer != null)
+                    clij2.release(buffer);
+            }
+            input = dog = binary = mask = null;
+            hostBuffer = null;
+            dims = null;
+        }
+    }
+}
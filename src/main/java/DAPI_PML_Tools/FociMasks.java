@@ -0,0 +1,42 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+
+/**
+ * Foci masks of the thresholding methods of a parameter sweep: methods giving the same mask share it
+ * Masks are the distinct ones, in order of the first method giving each of them
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class FociMasks {
+
+    private final ImagePlus[] masks;
+    // Index in masks of the mask of each thresholding method
+    private final int[] maskOfMethod;
+
+
+    public FociMasks(ImagePlus[] masks, int[] maskOfMethod) {
+        this.masks = masks;
+        this.maskOfMethod = maskOfMethod;
+    }
+
+
+    /**
+     * Distinct masks
+     */
+    public ImagePlus[] getMasks() {
+        return(masks);
+    }
+
+
+    /**
+     * Index of the mask of the thresholding method m
+     */
+    public int maskIndex(int m) {
+        return(maskOfMethod[m]);
+    }
+
+
+    public ImagePlus getMask(int m) {
+        return(masks[maskOfMethod[m]]);
+    }
+}
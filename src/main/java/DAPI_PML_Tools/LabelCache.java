@@ -0,0 +1,238 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * On-disk cache of Cellpose label images, so that reruns changing only foci parameters skip nuclei segmentation
+ * An entry is keyed by the SHA-256 of the Cellpose settings changing the masks, the tiling and the DAPI pixels,
+ * and stores the labels zlib-compressed with their dimensions, key and CRC32
+ * Entries are verified when read (key, dimensions and CRC32), invalid ones are deleted and segmented again
+ * The cache is bounded in size: least recently used entries (by file modification time, updated on each hit) are evicted
+ * Entries are written to a temporary file and renamed, so that a cache folder can be shared by several processes
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class LabelCache {
+
+    private static final String EXTENSION = ".labels";
+    private static final int MAGIC = 0x44504C43; // DPLC
+    private static final int VERSION = 1;
+
+    private final File dir;
+    private final long maxSize; // bytes
+    private int hits = 0, misses = 0;
+
+
+    public LabelCache(String dir, long maxSize) {
+        this.dir = new File(dir);
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * Key of the labels of an image: hash of the segmentation settings and of the image dimensions and pixels
+     */
+    public static String key(ImagePlus img, String settings) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((settings + "|" + img.getWidth() + "|" + img.getHeight() + "|" + img.getStackSize() + "|" + img.getBitDepth())
+                          .getBytes(StandardCharsets.UTF_8));
+            ImageStack stack = img.getStack();
+            for (int z = 1; z <= stack.getSize(); z++)
+                digest.update(planeBytes(stack.getProcessor(z)));
+            StringBuilder hex = new StringBuilder();
+            for (byte b: digest.digest())
+                hex.append(String.format("%02x", b));
+            return(hex.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Pixels of a plane as bytes, big-endian
+     */
+    private static byte[] planeBytes(ImageProcessor ip) {
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[])
+            return((byte[]) pixels);
+        if (pixels instanceof short[]) {
+            short[] values = (short[]) pixels;
+            ByteBuffer buffer = ByteBuffer.allocate(values.length * 2);
+            buffer.asShortBuffer().put(values);
+            return(buffer.array());
+        }
+        float[] values = (float[]) ip.convertToFloatProcessor().getPixels();
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asFloatBuffer().put(values);
+        return(buffer.array());
+    }
+
+
+    private File entry(String key) {
+        return(new File(dir, key + EXTENSION));
+    }
+
+
+    /**
+     * Labels of the image if they are in the cache and valid, null otherwise
+     * The calibration and dimensions of the image are given to the labels
+     */
+    public ImagePlus get(String key, ImagePlus img) {
+        File file = entry(key);
+        if (!file.exists()) {
+            countMiss();
+            return(null);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int width = img.getWidth(), height = img.getHeight(), depth = img.getStackSize();
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(key)
+                    || in.readInt() != width || in.readInt() != height || in.readInt() != depth)
+                throw new IOException("header does not match");
+            int bitDepth = in.readInt();
+            long crc = in.readLong();
+            if (bitDepth != 16 && bitDepth != 32)
+                throw new IOException("unsupported bit depth " + bitDepth);
+
+            CRC32 check = new CRC32();
+            ImageStack stack = new ImageStack(width, height);
+            DataInputStream data = new DataInputStream(new InflaterInputStream(in));
+            byte[] bytes = new byte[width * height * bitDepth / 8];
+            for (int z = 0; z < depth; z++) {
+                data.readFully(bytes);
+                check.update(bytes);
+                if (bitDepth == 16) {
+                    short[] pixels = new short[width * height];
+                    ByteBuffer.wrap(bytes).asShortBuffer().get(pixels);
+                    stack.addSlice(new ShortProcessor(width, height, pixels, null));
+                } else {
+                    float[] pixels = new float[width * height];
+                    ByteBuffer.wrap(bytes).asFloatBuffer().get(pixels);
+                    stack.addSlice(new FloatProcessor(width, height, pixels, null));
+                }
+            }
+            if (check.getValue() != crc)
+                throw new IOException("CRC32 does not match");
+
+            file.setLastModified(System.currentTimeMillis());
+            synchronized (this) {
+                hits++;
+            }
+            ImagePlus labels = new ImagePlus(img.getShortTitle() + "-cellpose", stack);
+            labels.setDimensions(img.getNChannels(), img.getNSlices(), img.getNFrames());
+            labels.setCalibration(img.getCalibration());
+            return(labels);
+        } catch (IOException ex) {
+            System.out.println("Invalid Cellpose cache entry " + file.getName() + " (" + ex.getMessage() + "), deleted");
+            file.delete();
+            countMiss();
+            return(null);
+        }
+    }
+
+
+    private synchronized void countMiss() {
+        misses++;
+    }
+
+
+    /**
+     * Store labels (16-bit or 32-bit) in the cache, then evict least recently used entries above the cache size
+     */
+    public void put(String key, ImagePlus labels) throws IOException {
+        int width = labels.getWidth(), height = labels.getHeight(), depth = labels.getStackSize();
+        int bitDepth = (labels.getBitDepth() == 32) ? 32 : 16;
+        ImageStack stack = labels.getStack();
+        byte[][] planes = new byte[depth][];
+        CRC32 crc = new CRC32();
+        for (int z = 0; z < depth; z++) {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            planes[z] = planeBytes((bitDepth == 16) ? ip.convertToShortProcessor(false) : ip);
+            crc.update(planes[z]);
+        }
+
+        dir.mkdirs();
+        File tmp = File.createTempFile(key + "_", ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeInt(width);
+                out.writeInt(height);
+                out.writeInt(depth);
+                out.writeInt(bitDepth);
+                out.writeLong(crc.getValue());
+                DeflaterOutputStream data = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED));
+                for (byte[] plane: planes)
+                    data.write(plane);
+                data.finish();
+            }
+            Files.move(tmp.toPath(), entry(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+        evict();
+    }
+
+
+    /**
+     * Delete least recently used entries until the cache fits in its size
+     */
+    private synchronized void evict() {
+        File[] entries = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+        if (entries == null)
+            return;
+        long size = 0;
+        for (File file: entries)
+            size += file.length();
+        if (size <= maxSize)
+            return;
+        long[] lastUsed = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            lastUsed[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> lastUsed[i]));
+        for (int i = 0; i < order.length && size > maxSize; i++) {
+            long length = entries[order[i]].length();
+            if (entries[order[i]].delete())
+                size -= length;
+        }
+    }
+
+
+    public synchronized int getHits() {
+        return(hits);
+    }
+
+
+    public synchronized int getMisses() {
+        return(misses);
+    }
+}
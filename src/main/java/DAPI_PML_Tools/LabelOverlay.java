@@ -0,0 +1,88 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import loci.common.DataTools;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.out.TiffWriter;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+/**
+ * Overlay storing only the label channels of an image (nuclei labels and foci mask, 16-bit) in a tiled,
+ * zlib-compressed OME-TIFF, with the path of the source image in its description
+ * Raw DAPI and PML channels are not copied: the display is rebuilt by opening the labels over the source image
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class LabelOverlay {
+
+    public static final String EXTENSION = ".labels.ome.tif";
+    public static final int TILE_SIZE = 256;
+    public static final int FOCI_VALUE = 255;
+
+
+    /**
+     * Draw nuclei labels and foci mask in 16-bit stacks of the given dimensions
+     */
+    public static ImagePlus[] draw(List<Nucleus> nuclei, int width, int height, int depth) {
+        ImageStack nucStack = new ImageStack(width, height), fociStack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            nucStack.addSlice(new ShortProcessor(width, height));
+            fociStack.addSlice(new ShortProcessor(width, height));
+        }
+        for (Nucleus nucleus: nuclei) {
+            nucleus.nucleusRle.draw(nucStack, nucleus.nucleus.getLabel());
+            for (RleObject pml: nucleus.pmlFociRle)
+                pml.draw(fociStack, FOCI_VALUE);
+        }
+        return(new ImagePlus[]{new ImagePlus("nuclei", nucStack), new ImagePlus("foci", fociStack)});
+    }
+
+
+    /**
+     * Write the label channels (same dimensions, 16-bit) in file, tile by tile
+     * Return the number of bytes written
+     */
+    public static long write(ImagePlus[] channels, Calibration cal, String file, String sourceFile) throws IOException {
+        int width = channels[0].getWidth(), height = channels[0].getHeight(), depth = channels[0].getStackSize();
+        IMetadata meta = MetadataTools.createOMEXMLMetadata();
+        MetadataTools.populateMetadata(meta, 0, new File(file).getName(), false, "XYZCT", FormatTools.getPixelTypeString(FormatTools.UINT16),
+                                       width, height, depth, channels.length, 1, 1);
+        meta.setPixelsPhysicalSizeX(new Length(cal.pixelWidth, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeY(new Length(cal.pixelHeight, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeZ(new Length(cal.pixelDepth, UNITS.MICROMETER), 0);
+        for (int c = 0; c < channels.length; c++)
+            meta.setChannelName(channels[c].getTitle(), 0, c);
+        if (sourceFile != null)
+            meta.setImageDescription("Labels of " + sourceFile, 0);
+
+        // Writers append to an existing TIFF
+        new File(file).delete();
+        try (OMETiffWriter writer = new OMETiffWriter()) {
+            writer.setMetadataRetrieve(meta);
+            writer.setCompression(TiffWriter.COMPRESSION_ZLIB);
+            writer.setBigTiff((long) width * height * depth * channels.length * 2 >= 0xFFFFFFFFL);
+            writer.setTileSizeX(Math.min(TILE_SIZE, width));
+            writer.setTileSizeY(Math.min(TILE_SIZE, height));
+            writer.setId(file);
+            for (int c = 0; c < channels.length; c++) {
+                for (int z = 0; z < depth; z++) {
+                    short[] pixels = (short[]) channels[c].getStack().getProcessor(z+1).convertToShortProcessor(false).getPixels();
+                    writer.saveBytes(c * depth + z, DataTools.shortsToBytes(pixels, false));
+                }
+            }
+        } catch (FormatException ex) {
+            throw new IOException(ex);
+        }
+        return(new File(file).length());
+    }
+}
@@ -0,0 +1,170 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+
+/**
+ * Measure PML foci and PML diffuse signal of all nuclei of an image
+ * Intensities are accumulated plane by plane on the runs of each nucleus and of its foci,
+ * into primitive arrays indexed by nucleus, without any frame-sized buffer
+ * Foci are dilated once for the whole image, diffuse signal of a nucleus is read in its voxels outside this dilated mask
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class NucleiMeasurement {
+
+    private final List<Nucleus> nuclei;
+    private final double fociVoxVolume;
+
+    // Per nucleus
+    private final double[] nucArea;
+    private final long[] fociVoxNb;
+    private final double[] fociSum;
+    private final RleObject[] diffuse; // nucleus voxels outside dilated foci
+    private final double[] diffuseSum;
+
+
+    /**
+     * Diffuse signal excludes all foci of the image, dilated
+     */
+    public NucleiMeasurement(List<Nucleus> nuclei, Objects3DIntPopulation pmlPop, ImagePlus imgPml) {
+        this(nuclei, encode(nuclei, pmlPop), imgPml);
+    }
+
+
+    /**
+     * Diffuse signal excludes the foci of the nuclei, dilated
+     */
+    public NucleiMeasurement(List<Nucleus> nuclei, ImagePlus imgPml) {
+        this(nuclei, allFoci(nuclei), imgPml);
+    }
+
+
+    private NucleiMeasurement(List<Nucleus> nuclei, List<RleObject> foci, ImagePlus imgPml) {
+        this.nuclei = nuclei;
+        Calibration cal = imgPml.getCalibration();
+        // As MeasureVolume on foci drawn in the PML image: mcib3d has a single XY voxel size, the pixel width
+        fociVoxVolume = cal.pixelWidth * cal.pixelWidth * cal.pixelDepth;
+
+        int nbNuclei = nuclei.size();
+        nucArea = new double[nbNuclei];
+        fociVoxNb = new long[nbNuclei];
+        fociSum = new double[nbNuclei];
+        diffuse = new RleObject[nbNuclei];
+        diffuseSum = new double[nbNuclei];
+
+        // Diffuse signal excludes foci dilated by 2 pixels in XY, one dilation for the image shared by all nuclei
+        RleObject dilFoci = dilateFoci(foci);
+        IntStream.range(0, nbNuclei).parallel().forEach(i -> {
+            RleObject nucleusRle = nuclei.get(i).nucleusRle;
+            nucArea[i] = nucleusRle.getVolumeUnit();
+            diffuse[i] = nucleusRle.subtract(dilFoci);
+        });
+    }
+
+
+    /**
+     * Run-length encoding of all foci of the image: foci of nuclei were already encoded by Nucleus, only the others are encoded
+     */
+    private static List<RleObject> encode(List<Nucleus> nuclei, Objects3DIntPopulation pmlPop) {
+        IdentityHashMap<Object3DInt, RleObject> encoded = new IdentityHashMap<>();
+        for (Nucleus nucleus: nuclei) {
+            List<Object3DInt> foci = nucleus.pmlFoci.getObjects3DInt();
+            for (int f = 0; f < foci.size(); f++)
+                encoded.put(foci.get(f), nucleus.pmlFociRle.get(f));
+        }
+        return(pmlPop.getObjects3DInt().parallelStream()
+                     .map(foci -> encoded.containsKey(foci) ? encoded.get(foci) : RleObject.of(foci))
+                     .collect(Collectors.toList()));
+    }
+
+
+    private static List<RleObject> allFoci(List<Nucleus> nuclei) {
+        ArrayList<RleObject> foci = new ArrayList<>();
+        for (Nucleus nucleus: nuclei)
+            foci.addAll(nucleus.pmlFociRle);
+        return(foci);
+    }
+
+
+    /**
+     * Mask of the foci dilated by 2 pixels in XY, planes are dilated in parallel
+     */
+    public static RleObject dilateFoci(List<RleObject> foci) {
+        return(RleObject.unionAll(foci).dilateXY(2, 2));
+    }
+
+
+    /**
+     * Accumulate intensities of the given PML plane (z starting at 0)
+     */
+    public void addPlane(int z, ImageProcessor ipPml) {
+        for (int i = 0; i < nuclei.size(); i++) {
+            // PML foci
+            for (RleObject foci: nuclei.get(i).pmlFociRle) {
+                fociSum[i] += foci.sumIntensity(z, ipPml);
+                fociVoxNb[i] += foci.getVolumePix(z);
+            }
+
+            // PML diffuse
+            diffuseSum[i] += diffuse[i].sumIntensity(z, ipPml);
+        }
+    }
+
+
+    /**
+     * Accumulate intensities of all planes of the PML image
+     */
+    public void measure(ImagePlus imgPml) {
+        for (int z = 0; z < imgPml.getStackSize(); z++)
+            addPlane(z, imgPml.getStack().getProcessor(z+1));
+    }
+
+
+    /**
+     * Parameters of PML foci in nucleus:
+     * - area
+     * - background-corrected mean intensity
+     * - background-corrected raw integrated density
+     */
+    public double[] getFociParams(int i, double bgPml) {
+        double area = fociVoxNb[i] * fociVoxVolume;
+        double meanInt = fociSum[i] / fociVoxNb[i] - bgPml;
+        double totInt = fociSum[i] - bgPml * fociVoxNb[i];
+        return(new double[]{area, meanInt, totInt});
+    }
+
+
+    /**
+     * Parameters of PML diffuse signal in nucleus:
+     * - area
+     * - background-corrected mean intensity
+     * - background-corrected raw integrated density
+     */
+    public double[] getFociDiffuseParams(int i, double bgPml, double pixArea) {
+        double area = diffuse[i].getVolumeUnit();
+        double areaInPix = area / pixArea;
+        double totInt = diffuseSum[i] - bgPml * areaInPix;
+        double meanInt = totInt / areaInPix;
+        return(new double[]{area, meanInt, totInt});
+    }
+
+
+    /**
+     * Add a row per nucleus in results table
+     */
+    public void addRows(NucleiTable table, String imgName, double bgPml, double pixArea) {
+        for (int i = 0; i < nuclei.size(); i++) {
+            Nucleus nucleus = nuclei.get(i);
+            table.addRow(imgName, bgPml, (int) nucleus.nucleus.getLabel(), nucArea[i], nucleus.pmlFoci.getNbObjects(),
+                         getFociParams(i, bgPml), getFociDiffuseParams(i, bgPml, pixArea));
+        }
+    }
+}
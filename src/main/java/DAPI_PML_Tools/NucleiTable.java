@@ -0,0 +1,116 @@
+package DAPI_PML_Tools;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Column-oriented table of nuclei results, one growable primitive array per column
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class NucleiTable {
+
+    public static final String HEADER = "Image name\tPML background noise\tNucleus ID\tNucleus area (µm2)\tPML foci number"
+                                      + "\tPML foci total area (µm2)\tPML foci bg-corr mean intensity\tPML foci bg-corr raw integrated density"
+                                      + "\tPML diffuse area (µm2)\tPML diffuse bg-corr mean intensity\tPML diffuse bg-corr raw integrated density\n";
+
+    private int size = 0;
+    private String[] imgName = new String[64];
+    private double[] pmlBg = new double[64];
+    private int[] nucId = new int[64];
+    private double[] nucArea = new double[64];
+    private int[] pmlFociNb = new int[64];
+    private double[] pmlFociArea = new double[64];
+    private double[] pmlFociMeanInt = new double[64];
+    private double[] pmlFociTotInt = new double[64];
+    private double[] pmlDiffuseArea = new double[64];
+    private double[] pmlDiffuseMeanInt = new double[64];
+    private double[] pmlDiffuseTotInt = new double[64];
+
+
+    public int size() {
+        return(size);
+    }
+
+
+    private void grow() {
+        int capacity = imgName.length * 2;
+        imgName = Arrays.copyOf(imgName, capacity);
+        pmlBg = Arrays.copyOf(pmlBg, capacity);
+        nucId = Arrays.copyOf(nucId, capacity);
+        nucArea = Arrays.copyOf(nucArea, capacity);
+        pmlFociNb = Arrays.copyOf(pmlFociNb, capacity);
+        pmlFociArea = Arrays.copyOf(pmlFociArea, capacity);
+        pmlFociMeanInt = Arrays.copyOf(pmlFociMeanInt, capacity);
+        pmlFociTotInt = Arrays.copyOf(pmlFociTotInt, capacity);
+        pmlDiffuseArea = Arrays.copyOf(pmlDiffuseArea, capacity);
+        pmlDiffuseMeanInt = Arrays.copyOf(pmlDiffuseMeanInt, capacity);
+        pmlDiffuseTotInt = Arrays.copyOf(pmlDiffuseTotInt, capacity);
+    }
+
+
+    /**
+     * Add a row, foci and diffuse params are {area, bg-corr mean intensity, bg-corr raw integrated density}
+     */
+    public void addRow(String img, double bg, int id, double area, int fociNb, double[] fociParams, double[] diffuseParams) {
+        if (size == imgName.length)
+            grow();
+        imgName[size] = img;
+        pmlBg[size] = bg;
+        nucId[size] = id;
+        nucArea[size] = area;
+        pmlFociNb[size] = fociNb;
+        pmlFociArea[size] = fociParams[0];
+        pmlFociMeanInt[size] = fociParams[1];
+        pmlFociTotInt[size] = fociParams[2];
+        pmlDiffuseArea[size] = diffuseParams[0];
+        pmlDiffuseMeanInt[size] = diffuseParams[1];
+        pmlDiffuseTotInt[size] = diffuseParams[2];
+        size++;
+    }
+
+
+    public int getNucId(int row) {
+        return(nucId[row]);
+    }
+
+
+    public double getNucArea(int row) {
+        return(nucArea[row]);
+    }
+
+
+    public int getPmlFociNb(int row) {
+        return(pmlFociNb[row]);
+    }
+
+
+    /**
+     * Write rows of the table, flushing the writer every flushEvery rows and at the end
+     */
+    public void write(Writer writer, int flushEvery) throws IOException {
+        write(writer, null, flushEvery);
+    }
+
+
+    /**
+     * Write rows of the table with extra columns after the image name (parameter set of a sweep), if not null
+     */
+    public void write(Writer writer, String columns, int flushEvery) throws IOException {
+        StringBuilder line = new StringBuilder(256);
+        for (int row = 0; row < size; row++) {
+            line.setLength(0);
+            line.append(imgName[row]).append('\t');
+            if (columns != null)
+                line.append(columns).append('\t');
+            line.append(pmlBg[row]).append('\t').append(nucId[row]).append('\t').append(nucArea[row]).append('\t')
+                .append(pmlFociNb[row]).append('\t').append(pmlFociArea[row]).append('\t').append(pmlFociMeanInt[row]).append('\t')
+                .append(pmlFociTotInt[row]).append('\t').append(pmlDiffuseArea[row]).append('\t').append(pmlDiffuseMeanInt[row]).append('\t')
+                .append(pmlDiffuseTotInt[row]).append('\n');
+            writer.append(line);
+            if (flushEvery > 0 && (row + 1) % flushEvery == 0)
+                writer.flush();
+        }
+        writer.flush();
+    }
+}
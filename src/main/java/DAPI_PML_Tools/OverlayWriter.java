@@ -0,0 +1,84 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draw and save overlay images in background threads, off the measurement workers
+ * At most queueSize overlays are pending (queued or being written): submitting another one blocks the worker until
+ * a slot is free, so that images kept for their overlay stay bounded in memory
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class OverlayWriter implements AutoCloseable {
+
+    private final Tools tools;
+    private final ExecutorService executor;
+    private final Semaphore slots;
+
+
+    public OverlayWriter(Tools tools, int nbThreads, int queueSize) {
+        this.tools = tools;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, nbThreads));
+        this.slots = new Semaphore(Math.max(1, queueSize), true);
+    }
+
+
+    /**
+     * Extension of the overlay file of an image, null if no overlay is written (parameter sweep included)
+     */
+    public static String overlayExtension(Parameters params) {
+        if (params.overlay.equals("None") || params.isSweep())
+            return(null);
+        return(params.overlayFormat.equals("Labels OME-TIFF") ? LabelOverlay.EXTENSION : ".tif");
+    }
+
+
+    /**
+     * Queue drawing of the results of an image, blocking while the queue is full
+     * Images must not be closed before the returned future completes
+     */
+    public CompletableFuture<Void> submit(ArrayList<Nucleus> nuclei, ImagePlus imgPml, ImagePlus imgDapi, String outDir, String imgName,
+                                          String sourceFile, Parameters params, StageTimings timings) {
+        if (overlayExtension(params) == null)
+            return(CompletableFuture.completedFuture(null));
+        try {
+            slots.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(ex);
+        }
+        try {
+            return(CompletableFuture.runAsync(() -> {
+                        StageTimings.Stage stage = StageTimings.start(StageTimings.DRAWING);
+                        tools.print(imgName + " - Drawing results -");
+                        tools.drawResults(nuclei, imgPml, imgDapi, outDir, imgName, sourceFile, params);
+                        timings.stop(stage, -1);
+                    }, executor)
+                    .whenComplete((v, ex) -> slots.release()));
+        } catch (RuntimeException ex) {
+            slots.release();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Wait for pending overlays to be written
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package DAPI_PML_Tools;
+
+import java.util.Locale;
+
+/**
+ * Grid of foci detection parameter sets evaluated in a single run: thresholding methods x min foci areas x max foci areas
+ * Parameter sets are ordered by thresholding method, then by area bounds, so that the sets of a method share its mask
+ * Results are written in long format, one row per nucleus and parameter set
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class ParameterSweep {
+
+    public static final String HEADER = "Image name\tThresholding method\tMin foci area (µm2)\tMax foci area (µm2)"
+                                      + NucleiTable.HEADER.substring("Image name".length());
+
+    private final String[] thMethods;
+    // Area bounds of each pair (µm2)
+    private final double[] minAreas, maxAreas;
+
+
+    public ParameterSweep(Parameters params) {
+        thMethods = params.getSweepThMethods();
+        double[] mins = params.getSweepMinAreaFoci(), maxs = params.getSweepMaxAreaFoci();
+        minAreas = new double[mins.length * maxs.length];
+        maxAreas = new double[mins.length * maxs.length];
+        for (int i = 0; i < mins.length; i++) {
+            for (int j = 0; j < maxs.length; j++) {
+                minAreas[i * maxs.length + j] = mins[i];
+                maxAreas[i * maxs.length + j] = maxs[j];
+            }
+        }
+    }
+
+
+    /**
+     * Number of parameter sets
+     */
+    public int size() {
+        return(thMethods.length * minAreas.length);
+    }
+
+
+    public String[] getThMethods() {
+        return(thMethods);
+    }
+
+
+    /**
+     * Min area of each pair of area bounds, in the order of the parameter sets of a thresholding method
+     */
+    public double[] getMinAreas() {
+        return(minAreas);
+    }
+
+
+    public double[] getMaxAreas() {
+        return(maxAreas);
+    }
+
+
+    /**
+     * Columns of the parameter set in results, after the image name
+     */
+    public String columns(int set) {
+        int pair = set % minAreas.length;
+        return(String.format(Locale.US, "%s\t%s\t%s", thMethods[set / minAreas.length], minAreas[pair], maxAreas[pair]));
+    }
+}
@@ -0,0 +1,148 @@
+package DAPI_PML_Tools;
+
+import ij.measure.Calibration;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Immutable set of parameters of a run, shared by all the workers of a batch
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class Parameters {
+
+    // Channels
+    public final int dapiChannel;
+    public final int pmlChannel;
+
+    // Image calibration
+    private final Calibration cal;
+    public final double pixArea;
+
+    // Nuclei detection with Cellpose
+    public final String cellposeEnvDir;
+    public final String cellposeModel;
+    public final int cellposeDiam;
+    public final boolean cellposeServer;
+    public final int cellposeChunkSize; // images per Cellpose invocation, if no Cellpose server
+    public final double minAreaNuc; // µm2
+    public final double maxAreaNuc; // µm2
+    public final String cellposeCacheDir;
+    public final long cellposeCacheSize; // MB, 0 = no cache
+
+    // PML foci detection with DoG + Thresholding
+    public final double dogSigma1;
+    public final double dogSigma2;
+    public final String thMethod;
+    public final double minAreaFoci; // µm2
+    public final double maxAreaFoci; // µm2
+    public final String fociEngine; // Auto, GPU (CLIJ2) or CPU
+    // Parameter sweep: grid of thresholding methods x min areas x max areas, null if no sweep
+    private final String[] sweepThMethods;
+    private final double[] sweepMinAreaFoci, sweepMaxAreaFoci; // µm2
+
+    // Batch processing
+    public final int nbWorkers;
+    public final long memoryBudget; // MB
+    public final boolean resume;
+    public final boolean streaming; // PML planes read on demand instead of opening the whole channel
+    public final String overlay; // Full, Max projection, Downsampled or None
+    public final String overlayFormat; // Merged TIFF or Labels OME-TIFF
+
+    // Tiled processing of large images
+    public final int tileSize; // pixels, 0 = whole image
+    public final int tileOverlap; // pixels
+
+
+    public Parameters(int dapiChannel, int pmlChannel, Calibration cal, String cellposeEnvDir, String cellposeModel, int cellposeDiam,
+                      boolean cellposeServer, int cellposeChunkSize, double minAreaNuc, double maxAreaNuc, double dogSigma1, double dogSigma2, String thMethod, double minAreaFoci,
+                      double maxAreaFoci, String fociEngine, int nbWorkers, long memoryBudget, boolean resume,
+                      boolean streaming, String overlay, String overlayFormat, int tileSize, int tileOverlap,
+                      String cellposeCacheDir, long cellposeCacheSize, String[] sweepThMethods, double[] sweepMinAreaFoci, double[] sweepMaxAreaFoci) {
+        this.dapiChannel = dapiChannel;
+        this.pmlChannel = pmlChannel;
+        this.cal = cal.copy();
+        this.pixArea = cal.pixelWidth * cal.pixelHeight;
+        this.cellposeEnvDir = cellposeEnvDir;
+        this.cellposeModel = cellposeModel;
+        this.cellposeDiam = cellposeDiam;
+        this.cellposeServer = cellposeServer;
+        this.cellposeChunkSize = cellposeServer ? 1 : Math.max(1, cellposeChunkSize);
+        this.minAreaNuc = minAreaNuc;
+        this.maxAreaNuc = maxAreaNuc;
+        this.dogSigma1 = dogSigma1;
+        this.dogSigma2 = dogSigma2;
+        this.thMethod = thMethod;
+        this.minAreaFoci = minAreaFoci;
+        this.maxAreaFoci = maxAreaFoci;
+        this.fociEngine = fociEngine;
+        // Lists left empty take the single value above
+        boolean sweep = (sweepThMethods != null && sweepThMethods.length > 0) || (sweepMinAreaFoci != null && sweepMinAreaFoci.length > 0)
+                        || (sweepMaxAreaFoci != null && sweepMaxAreaFoci.length > 0);
+        this.sweepThMethods = !sweep ? null : (sweepThMethods == null || sweepThMethods.length == 0) ? new String[]{thMethod} : sweepThMethods.clone();
+        this.sweepMinAreaFoci = !sweep ? null : (sweepMinAreaFoci == null || sweepMinAreaFoci.length == 0) ? new double[]{minAreaFoci} : sweepMinAreaFoci.clone();
+        this.sweepMaxAreaFoci = !sweep ? null : (sweepMaxAreaFoci == null || sweepMaxAreaFoci.length == 0) ? new double[]{maxAreaFoci} : sweepMaxAreaFoci.clone();
+        this.nbWorkers = Math.max(1, nbWorkers);
+        this.memoryBudget = Math.max(1, memoryBudget);
+        this.resume = resume;
+        // Sweep keeps the DoG of the whole PML channel, planes are not streamed
+        this.streaming = streaming && !sweep;
+        this.overlay = overlay;
+        this.overlayFormat = overlayFormat;
+        this.tileSize = Math.max(0, tileSize);
+        this.tileOverlap = Math.max(0, tileOverlap);
+        this.cellposeCacheDir = cellposeCacheDir;
+        this.cellposeCacheSize = Math.max(0, cellposeCacheSize);
+    }
+
+
+    /**
+     * Return a copy of the image calibration, so that workers cannot modify it
+     */
+    public Calibration getCalibration() {
+        return(cal.copy());
+    }
+
+
+    public boolean isSweep() {
+        return(sweepThMethods != null);
+    }
+
+
+    public String[] getSweepThMethods() {
+        return(isSweep() ? sweepThMethods.clone() : new String[]{thMethod});
+    }
+
+
+    public double[] getSweepMinAreaFoci() {
+        return(isSweep() ? sweepMinAreaFoci.clone() : new double[]{minAreaFoci});
+    }
+
+
+    public double[] getSweepMaxAreaFoci() {
+        return(isSweep() ? sweepMaxAreaFoci.clone() : new double[]{maxAreaFoci});
+    }
+
+
+    /**
+     * Hash of the parameters changing the results, batch processing parameters and filtering engine are left out
+     * Tiling may change nuclei segmented by Cellpose, it is included when enabled
+     */
+    public String hash() {
+        String analysis = dapiChannel + "|" + pmlChannel + "|" + cal.pixelWidth + "|" + cal.pixelHeight + "|" + cal.pixelDepth + "|"
+                          + cellposeModel + "|" + cellposeDiam + "|" + minAreaNuc + "|" + maxAreaNuc + "|"
+                          + dogSigma1 + "|" + dogSigma2 + "|" + thMethod + "|" + minAreaFoci + "|" + maxAreaFoci
+                          + ((tileSize > 0) ? "|" + tileSize + "|" + tileOverlap : "")
+                          + (isSweep() ? "|" + Arrays.toString(sweepThMethods) + "|" + Arrays.toString(sweepMinAreaFoci) + "|" + Arrays.toString(sweepMaxAreaFoci) : "");
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(analysis.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++)
+                hex.append(String.format("%02x", digest[i]));
+            return(hex.toString());
+        } catch (NoSuchAlgorithmException e) {
+            return(Integer.toHexString(analysis.hashCode()));
+        }
+    }
+}
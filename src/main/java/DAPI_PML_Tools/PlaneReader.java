@@ -0,0 +1,143 @@
+package DAPI_PML_Tools;
+
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.IOException;
+import loci.common.DataTools;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Planes of a channel read on demand, so that the channel never has to be fully in memory (streaming mode)
+ * Each PlaneReader has its own reader, planes are ordered as in the stacks opened by Tools.openChannels (Z, then T)
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class PlaneReader implements AutoCloseable {
+
+    private final ImageProcessorReader reader;
+    private final int channel;
+    private final String title;
+    private final int pixelType;
+    private final Calibration cal;
+    private byte[] buffer;
+
+
+    public PlaneReader(String file, int channel) throws IOException {
+        this.reader = new ImageProcessorReader();
+        this.channel = channel;
+        this.title = FilenameUtils.getBaseName(file) + " - C=" + channel;
+        IMetadata meta = MetadataTools.createOMEXMLMetadata();
+        reader.setMetadataStore(meta);
+        try {
+            reader.setId(file);
+        } catch (FormatException e) {
+            throw new IOException(e);
+        }
+        this.pixelType = reader.getPixelType();
+        this.cal = Tools.getCalibration(meta);
+    }
+
+
+    public String getTitle() {
+        return(title);
+    }
+
+
+    /**
+     * Calibration of the image, as set by Tools.openChannels
+     */
+    public Calibration getCalibration() {
+        return(cal.copy());
+    }
+
+
+    public int getWidth() {
+        return(reader.getSizeX());
+    }
+
+
+    public int getHeight() {
+        return(reader.getSizeY());
+    }
+
+
+    public int getNSlices() {
+        return(reader.getSizeZ());
+    }
+
+
+    /**
+     * Number of planes of the channel (Z x T)
+     */
+    public int getSize() {
+        return(reader.getSizeZ() * reader.getSizeT());
+    }
+
+
+    public int getBitDepth() {
+        switch (pixelType) {
+            case FormatTools.UINT8 :
+                return(8);
+            case FormatTools.UINT16 :
+                return(16);
+            default :
+                return(32);
+        }
+    }
+
+
+    /**
+     * Read a plane (starting at 0), raw bytes are decoded in a buffer reused from plane to plane
+     * Pixel types other than 8-bit, 16-bit and float are converted to float
+     */
+    public synchronized ImageProcessor getPlane(int i) throws IOException {
+        int no = reader.getIndex(i % reader.getSizeZ(), channel, i / reader.getSizeZ());
+        int width = getWidth(), height = getHeight();
+        try {
+            switch (pixelType) {
+                case FormatTools.UINT8 :
+                case FormatTools.UINT16 :
+                case FormatTools.FLOAT :
+                    int bpp = FormatTools.getBytesPerPixel(pixelType);
+                    if (buffer == null)
+                        buffer = new byte[width * height * bpp];
+                    reader.openBytes(no, buffer);
+                    Object pixels = DataTools.makeDataArray(buffer, bpp, pixelType == FormatTools.FLOAT, reader.isLittleEndian());
+                    if (pixelType == FormatTools.UINT8)
+                        return(new ByteProcessor(width, height, ((byte[]) pixels).clone()));
+                    if (pixelType == FormatTools.UINT16)
+                        return(new ShortProcessor(width, height, (short[]) pixels, null));
+                    return(new FloatProcessor(width, height, (float[]) pixels));
+                default :
+                    return(reader.openProcessors(no)[0].convertToFloat());
+            }
+        } catch (FormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+
+    /**
+     * Read planes from (included) to (excluded)
+     */
+    public ImageStack getPlanes(int from, int to) throws IOException {
+        ImageStack stack = new ImageStack(getWidth(), getHeight());
+        for (int i = from; i < to; i++)
+            stack.addSlice(getPlane(i));
+        return(stack);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,418 @@
+package DAPI_PML_Tools;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.VoxelInt;
+
+/**
+ * Run-length encoded 3D object: runs of voxels along X, sorted by plane, row and start
+ * Memory is proportional to the number of rows crossed by the object instead of its number of voxels,
+ * and measures, overlaps, dilation and drawing are computed on the runs
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class RleObject {
+
+    // Run i covers voxels xStart[i] to xEnd[i] (excluded) of row y[i] in plane z[i]
+    private final int[] z, y, xStart, xEnd;
+    private final int size;
+    private final double voxelVolume;
+
+
+    private RleObject(int[] z, int[] y, int[] xStart, int[] xEnd, int size, double voxelVolume) {
+        this.z = z;
+        this.y = y;
+        this.xStart = xStart;
+        this.xEnd = xEnd;
+        this.size = size;
+        this.voxelVolume = voxelVolume;
+    }
+
+
+    /**
+     * Encode an object, with its voxel size
+     */
+    public static RleObject of(Object3DInt obj) {
+        Builder builder = new Builder();
+        ArrayList<Object3DPlane> planes = new ArrayList<>(obj.getObject3DPlanes());
+        planes.sort((p1, p2) -> Integer.compare(p1.getZPlane(), p2.getZPlane()));
+        for (Object3DPlane plane: planes) {
+            List<VoxelInt> voxels = plane.getVoxels();
+            long[] keys = new long[voxels.size()];
+            for (int i = 0; i < keys.length; i++)
+                keys[i] = ((long) voxels.get(i).getY() << 32) | (voxels.get(i).getX() & 0xFFFFFFFFL);
+            Arrays.sort(keys);
+            for (int i = 0; i < keys.length; ) {
+                int row = (int) (keys[i] >> 32), start = (int) keys[i];
+                int end = start + 1;
+                for (i++; i < keys.length && (int) (keys[i] >> 32) == row && (int) keys[i] == end; i++)
+                    end++;
+                builder.add(plane.getZPlane(), row, start, end);
+            }
+        }
+        return(builder.build(obj.getVoxelSizeXY() * obj.getVoxelSizeXY() * obj.getVoxelSizeZ()));
+    }
+
+
+    /**
+     * Ellipsoid centered on (cx, cy, cz) with radii rx, ry, rz (rz = 0 for a single plane)
+     */
+    public static RleObject ellipsoid(int cx, int cy, int cz, double rx, double ry, double rz, double voxelVolume) {
+        Builder builder = new Builder();
+        for (int dz = -(int) rz; dz <= (int) rz; dz++) {
+            double fz = (rz == 0) ? 0 : (double) (dz * dz) / (rz * rz);
+            for (int dy = -(int) ry; dy <= (int) ry; dy++) {
+                double f = 1 - fz - ((ry == 0) ? 0 : (double) (dy * dy) / (ry * ry));
+                if (f < 0)
+                    continue;
+                int dx = (int) Math.floor(rx * Math.sqrt(f) + 1e-9);
+                builder.add(cz + dz, cy + dy, cx - dx, cx + dx + 1);
+            }
+        }
+        return(builder.build(voxelVolume));
+    }
+
+
+    /**
+     * Union of several objects (foci of an image for instance), with the voxel size of the first one
+     */
+    public static RleObject unionAll(List<RleObject> objects) {
+        int nbRuns = 0;
+        for (RleObject obj: objects)
+            nbRuns += obj.size;
+        int[] z = new int[nbRuns], y = new int[nbRuns], xStart = new int[nbRuns], xEnd = new int[nbRuns];
+        int n = 0;
+        for (RleObject obj: objects) {
+            System.arraycopy(obj.z, 0, z, n, obj.size);
+            System.arraycopy(obj.y, 0, y, n, obj.size);
+            System.arraycopy(obj.xStart, 0, xStart, n, obj.size);
+            System.arraycopy(obj.xEnd, 0, xEnd, n, obj.size);
+            n += obj.size;
+        }
+        // Counting sort of the runs by row, then insertion sort of the few runs of each row by start
+        int zMin = Integer.MAX_VALUE, zMax = Integer.MIN_VALUE, yMin = Integer.MAX_VALUE, yMax = Integer.MIN_VALUE;
+        for (int i = 0; i < nbRuns; i++) {
+            zMin = Math.min(zMin, z[i]);
+            zMax = Math.max(zMax, z[i]);
+            yMin = Math.min(yMin, y[i]);
+            yMax = Math.max(yMax, y[i]);
+        }
+        int nbRows = (nbRuns == 0) ? 0 : (zMax - zMin + 1) * (yMax - yMin + 1);
+        int[] rowStarts = new int[nbRows + 1];
+        for (int i = 0; i < nbRuns; i++)
+            rowStarts[(z[i] - zMin) * (yMax - yMin + 1) + y[i] - yMin + 1]++;
+        for (int r = 0; r < nbRows; r++)
+            rowStarts[r+1] += rowStarts[r];
+        int[] order = new int[nbRuns];
+        int[] next = Arrays.copyOf(rowStarts, nbRows);
+        for (int i = 0; i < nbRuns; i++)
+            order[next[(z[i] - zMin) * (yMax - yMin + 1) + y[i] - yMin]++] = i;
+        Builder builder = new Builder();
+        for (int r = 0; r < nbRows; r++) {
+            for (int k = rowStarts[r] + 1; k < rowStarts[r+1]; k++) {
+                int run = order[k], l = k - 1;
+                for (; l >= rowStarts[r] && xStart[order[l]] > xStart[run]; l--)
+                    order[l+1] = order[l];
+                order[l+1] = run;
+            }
+            for (int k = rowStarts[r]; k < rowStarts[r+1]; k++)
+                builder.addMerged(z[order[k]], y[order[k]], xStart[order[k]], xEnd[order[k]]);
+        }
+        return(builder.build(objects.isEmpty() ? 1 : objects.get(0).voxelVolume));
+    }
+
+
+    /**
+     * Number of runs
+     */
+    public int getNbRuns() {
+        return(size);
+    }
+
+
+    /**
+     * Volume in voxels
+     */
+    public long getVolumePix() {
+        long volume = 0;
+        for (int i = 0; i < size; i++)
+            volume += xEnd[i] - xStart[i];
+        return(volume);
+    }
+
+
+    /**
+     * Volume in calibrated unit
+     */
+    public double getVolumeUnit() {
+        return(getVolumePix() * voxelVolume);
+    }
+
+
+    /**
+     * First run of the given plane, or first run of the next plane if the object has no voxel in this plane
+     */
+    private int firstRun(int plane) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (z[mid] < plane)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return(low);
+    }
+
+
+    /**
+     * Number of voxels in plane
+     */
+    public long getVolumePix(int plane) {
+        long volume = 0;
+        for (int i = firstRun(plane); i < size && z[i] == plane; i++)
+            volume += xEnd[i] - xStart[i];
+        return(volume);
+    }
+
+
+    /**
+     * Sum of intensities of the voxels of the object in the given plane
+     * Runs outside the image are clipped
+     */
+    public double sumIntensity(int plane, ImageProcessor ip) {
+        double sum = 0;
+        int width = ip.getWidth(), height = ip.getHeight();
+        for (int i = firstRun(plane); i < size && z[i] == plane; i++) {
+            if (y[i] < 0 || y[i] >= height)
+                continue;
+            for (int x = Math.max(0, xStart[i]); x < Math.min(width, xEnd[i]); x++)
+                sum += ip.getf(x, y[i]);
+        }
+        return(sum);
+    }
+
+
+    /**
+     * Check if the object contains the voxel
+     */
+    public boolean contains(int vx, int vy, int vz) {
+        for (int i = firstRun(vz); i < size && z[i] == vz && y[i] <= vy; i++) {
+            if (y[i] == vy && xStart[i] <= vx && vx < xEnd[i])
+                return(true);
+        }
+        return(false);
+    }
+
+
+    /**
+     * Compare rows of run i of this object and run j of other object
+     */
+    private int compareRows(int i, RleObject other, int j) {
+        return((z[i] != other.z[j]) ? Integer.compare(z[i], other.z[j]) : Integer.compare(y[i], other.y[j]));
+    }
+
+
+    /**
+     * Number of voxels shared with another object
+     */
+    public long intersectionVolumePix(RleObject other) {
+        long volume = 0;
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            int cmp = compareRows(i, other, j);
+            if (cmp == 0) {
+                volume += Math.max(0, Math.min(xEnd[i], other.xEnd[j]) - Math.max(xStart[i], other.xStart[j]));
+                if (xEnd[i] < other.xEnd[j])
+                    i++;
+                else
+                    j++;
+            } else if (cmp < 0)
+                i++;
+            else
+                j++;
+        }
+        return(volume);
+    }
+
+
+    /**
+     * Voxels of this object or of the other one
+     */
+    public RleObject union(RleObject other) {
+        Builder builder = new Builder();
+        int i = 0, j = 0;
+        while (i < size || j < other.size) {
+            boolean takeThis = j == other.size || (i < size && (compareRows(i, other, j) < 0
+                               || (compareRows(i, other, j) == 0 && xStart[i] <= other.xStart[j])));
+            if (takeThis) {
+                builder.addMerged(z[i], y[i], xStart[i], xEnd[i]);
+                i++;
+            } else {
+                builder.addMerged(other.z[j], other.y[j], other.xStart[j], other.xEnd[j]);
+                j++;
+            }
+        }
+        return(builder.build(voxelVolume));
+    }
+
+
+    /**
+     * First run of the other object from index j that is not in a row before the row of run i
+     */
+    private int seekRow(int i, RleObject other, int j) {
+        int low = j, high = other.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareRows(i, other, mid) > 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return(low);
+    }
+
+
+    /**
+     * Voxels of this object that are not in the other one
+     * Rows of the other object are found by binary search, so that a small object can be subtracted a large one
+     */
+    public RleObject subtract(RleObject other) {
+        Builder builder = new Builder();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (j < other.size && compareRows(i, other, j) > 0)
+                j = seekRow(i, other, j);
+            int start = xStart[i];
+            for (int k = j; k < other.size && compareRows(i, other, k) == 0 && start < xEnd[i]; k++) {
+                if (other.xEnd[k] <= start)
+                    continue;
+                if (other.xStart[k] >= xEnd[i])
+                    break;
+                if (other.xStart[k] > start)
+                    builder.add(z[i], y[i], start, other.xStart[k]);
+                start = Math.max(start, other.xEnd[k]);
+            }
+            if (start < xEnd[i])
+                builder.add(z[i], y[i], start, xEnd[i]);
+        }
+        return(builder.build(voxelVolume));
+    }
+
+
+    /**
+     * Dilation in XY by an elliptic kernel of radii rx and ry (voxels within (dx/rx)² + (dy/ry)² <= 1)
+     * Planes are dilated in parallel
+     */
+    public RleObject dilateXY(int rx, int ry) {
+        int[] halfWidths = new int[2*ry + 1];
+        for (int dy = -ry; dy <= ry; dy++)
+            halfWidths[dy + ry] = (ry == 0) ? rx : (int) Math.floor(rx * Math.sqrt(1 - (double) (dy * dy) / (ry * ry)) + 1e-9);
+
+        ArrayList<Integer> planeStarts = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || z[i] != z[i-1])
+                planeStarts.add(i);
+        }
+        planeStarts.add(size);
+        Builder[] planes = new Builder[planeStarts.size() - 1];
+        IntStream.range(0, planes.length).parallel().forEach(p ->
+            planes[p] = dilatePlaneXY(planeStarts.get(p), planeStarts.get(p+1), ry, halfWidths));
+
+        Builder builder = new Builder();
+        for (Builder plane: planes)
+            builder.addAll(plane);
+        return(builder.build(voxelVolume));
+    }
+
+
+    /**
+     * Dilate runs planeStart to planeEnd (excluded) of a plane
+     * Each output row gathers the runs of source rows within ry, widened by the kernel half-width of their distance
+     */
+    private Builder dilatePlaneXY(int planeStart, int planeEnd, int ry, int[] halfWidths) {
+        Builder builder = new Builder();
+        int yMin = y[planeStart], yMax = y[planeEnd - 1];
+        int[] rowFirst = new int[yMax - yMin + 2];
+        Arrays.fill(rowFirst, -1);
+        for (int i = planeEnd - 1; i >= planeStart; i--)
+            rowFirst[y[i] - yMin] = i;
+        ArrayList<long[]> intervals = new ArrayList<>();
+        for (int outY = yMin - ry; outY <= yMax + ry; outY++) {
+            intervals.clear();
+            for (int dy = -ry; dy <= ry; dy++) {
+                int srcY = outY - dy;
+                if (srcY < yMin || srcY > yMax || rowFirst[srcY - yMin] < 0)
+                    continue;
+                int dx = halfWidths[dy + ry];
+                for (int i = rowFirst[srcY - yMin]; i < planeEnd && y[i] == srcY; i++)
+                    intervals.add(new long[]{xStart[i] - dx, xEnd[i] + dx});
+            }
+            intervals.sort((a, b) -> Long.compare(a[0], b[0]));
+            for (long[] interval: intervals)
+                builder.addMerged(z[planeStart], outY, (int) interval[0], (int) interval[1]);
+        }
+        return(builder);
+    }
+
+
+    /**
+     * Draw the object in a stack (plane z in slice z+1) with the given value, runs outside the stack are clipped
+     */
+    public void draw(ImageStack stack, double value) {
+        int width = stack.getWidth(), height = stack.getHeight();
+        for (int i = 0; i < size; i++) {
+            if (z[i] < 0 || z[i] >= stack.getSize() || y[i] < 0 || y[i] >= height)
+                continue;
+            ImageProcessor ip = stack.getProcessor(z[i] + 1);
+            for (int x = Math.max(0, xStart[i]); x < Math.min(width, xEnd[i]); x++)
+                ip.putPixelValue(x, y[i], value);
+        }
+    }
+
+
+    /**
+     * Append runs in (plane, row, start) order
+     */
+    private static class Builder {
+        private int[] z = new int[16], y = new int[16], xStart = new int[16], xEnd = new int[16];
+        private int size = 0;
+
+        void add(int vz, int vy, int start, int end) {
+            if (size == z.length) {
+                z = Arrays.copyOf(z, size * 2);
+                y = Arrays.copyOf(y, size * 2);
+                xStart = Arrays.copyOf(xStart, size * 2);
+                xEnd = Arrays.copyOf(xEnd, size * 2);
+            }
+            z[size] = vz;
+            y[size] = vy;
+            xStart[size] = start;
+            xEnd[size++] = end;
+        }
+
+        /**
+         * Add a run, merged with the last one if they overlap or touch in the same row
+         */
+        void addMerged(int vz, int vy, int start, int end) {
+            if (size > 0 && z[size-1] == vz && y[size-1] == vy && start <= xEnd[size-1])
+                xEnd[size-1] = Math.max(xEnd[size-1], end);
+            else
+                add(vz, vy, start, end);
+        }
+
+        void addAll(Builder other) {
+            for (int i = 0; i < other.size; i++)
+                add(other.z[i], other.y[i], other.xStart[i], other.xEnd[i]);
+        }
+
+        RleObject build(double voxelVolume) {
+            return(new RleObject(Arrays.copyOf(z, size), Arrays.copyOf(y, size), Arrays.copyOf(xStart, size), Arrays.copyOf(xEnd, size), size, voxelVolume));
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+/**
+ * Connected components labelling of sparse binary masks (foci), without any label image:
+ * - rows of each plane are run-length encoded, in parallel
+ * - runs of a plane are merged in a union-find, in parallel (planes use disjoint runs)
+ * - runs of consecutive planes are merged, then components are filtered by size (by several filters sharing the labelling)
+ * Connectivity is 26 (8 in 2D) and objects are numbered in raster order of their first voxel, as with ImageLabeller,
+ * so that the population is the same as ImageLabeller + getFilterSize + resetLabels
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class SparseLabeller {
+
+    private int width, height, depth;
+    // Runs of each plane, row by row: runs of row y are rowStarts[z][y] to rowStarts[z][y+1] (excluded)
+    private int[][] rowStarts, runStarts, runEnds;
+    private int[] planeOffsets;
+    private int[] parent;
+    private int nbComponents;
+
+
+    /**
+     * Number of connected components found by the last labelling, before size filtering
+     */
+    public int getNbComponents() {
+        return(nbComponents);
+    }
+
+
+    /**
+     * Label voxels > 0 of the mask and keep objects with minSize <= volume (pixels) <= maxSize (no max if negative)
+     */
+    public Objects3DIntPopulation label(ImagePlus mask, double minSize, double maxSize, Calibration cal) {
+        return(label(mask, new double[]{minSize}, new double[]{maxSize}, cal)[0]);
+    }
+
+
+    /**
+     * Label voxels > 0 of the mask once and give the population of each size filter
+     * (objects with minSizes[i] <= volume (pixels) <= maxSizes[i])
+     */
+    public Objects3DIntPopulation[] label(ImagePlus mask, double[] minSizes, double[] maxSizes, Calibration cal) {
+        width = mask.getWidth();
+        height = mask.getHeight();
+        depth = mask.getStackSize();
+        ImageStack stack = mask.getStack();
+
+        // Run-length encoding of the rows of each plane
+        rowStarts = new int[depth][];
+        runStarts = new int[depth][];
+        runEnds = new int[depth][];
+        IntStream.range(0, depth).parallel().forEach(z -> encodePlane(z, stack.getPixels(z+1)));
+        planeOffsets = new int[depth + 1];
+        for (int z = 0; z < depth; z++)
+            planeOffsets[z+1] = planeOffsets[z] + runStarts[z].length;
+
+        // Union-find of the runs, root of a component is its first run in raster order
+        int nbRuns = planeOffsets[depth];
+        parent = new int[nbRuns];
+        for (int r = 0; r < nbRuns; r++)
+            parent[r] = r;
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            for (int y = 1; y < height; y++)
+                unionRows(z, y, z, y-1);
+        });
+        for (int z = 1; z < depth; z++) {
+            for (int y = 0; y < height; y++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    if (y + dy >= 0 && y + dy < height)
+                        unionRows(z, y, z-1, y+dy);
+                }
+            }
+        }
+
+        // Component volumes, accumulated on roots
+        long[] volumes = new long[nbRuns];
+        nbComponents = 0;
+        for (int z = 0; z < depth; z++) {
+            for (int r = 0; r < runStarts[z].length; r++) {
+                int run = planeOffsets[z] + r;
+                int root = find(run);
+                parent[run] = root;
+                nbComponents += (root == run) ? 1 : 0;
+                volumes[root] += runEnds[z][r] - runStarts[z][r];
+            }
+        }
+
+        Objects3DIntPopulation[] pops = new Objects3DIntPopulation[minSizes.length];
+        for (int i = 0; i < pops.length; i++)
+            pops[i] = population(volumes, minSizes[i], maxSizes[i], cal);
+        rowStarts = runStarts = runEnds = null;
+        parent = null;
+        return(pops);
+    }
+
+
+    /**
+     * Population of the components with minSize <= volume <= maxSize
+     */
+    private Objects3DIntPopulation population(long[] volumes, double minSize, double maxSize, Calibration cal) {
+        int nbRuns = planeOffsets[depth];
+        // Labels of kept components, in raster order of their first run
+        int[] labels = new int[nbRuns];
+        int nbObjects = 0;
+        for (int run = 0; run < nbRuns; run++) {
+            if (parent[run] == run && volumes[run] >= minSize && (maxSize < 0 || volumes[run] <= maxSize))
+                labels[run] = ++nbObjects;
+        }
+
+        // Voxels of kept objects, plane by plane: geom2 Object3DPlane only stores a list of VoxelInt (no constructor
+        // from runs), so each run is expanded in voxels, which are what contains and measurements iterate anyway
+        ArrayList<ArrayList<VoxelInt>> voxels = new ArrayList<>(nbObjects);
+        Object3DInt[] objects = new Object3DInt[nbObjects];
+        for (int i = 0; i < nbObjects; i++) {
+            voxels.add(new ArrayList<>());
+            objects[i] = new Object3DInt(i + 1);
+            objects[i].setVoxelSizeXY(cal.pixelWidth);
+            objects[i].setVoxelSizeZ(cal.pixelDepth);
+        }
+        for (int z = 0; z < depth; z++) {
+            boolean[] inPlane = new boolean[nbObjects];
+            for (int y = 0; y < height; y++) {
+                for (int r = rowStarts[z][y]; r < rowStarts[z][y+1]; r++) {
+                    int label = labels[parent[planeOffsets[z] + r]];
+                    if (label == 0)
+                        continue;
+                    inPlane[label-1] = true;
+                    for (int x = runStarts[z][r]; x < runEnds[z][r]; x++)
+                        voxels.get(label-1).add(new VoxelInt(x, y, z, label));
+                }
+            }
+            for (int i = 0; i < nbObjects; i++) {
+                if (inPlane[i]) {
+                    objects[i].addPlane(new Object3DPlane(voxels.get(i), z));
+                    voxels.set(i, new ArrayList<>());
+                }
+            }
+        }
+
+        Objects3DIntPopulation pop = new Objects3DIntPopulation();
+        for (Object3DInt object: objects)
+            pop.addObject(object);
+        return(pop);
+    }
+
+
+    /**
+     * Run-length encoding of the voxels > 0 of a plane
+     */
+    private void encodePlane(int z, Object pixels) {
+        int[] rows = new int[height + 1];
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int nbRuns = 0;
+        for (int y = 0; y < height; y++) {
+            rows[y] = nbRuns;
+            int x = 0;
+            while (x < width) {
+                if (!isSet(pixels, y * width + x)) {
+                    x++;
+                    continue;
+                }
+                int start = x;
+                while (x < width && isSet(pixels, y * width + x))
+                    x++;
+                if (nbRuns == starts.length) {
+                    starts = Arrays.copyOf(starts, nbRuns * 2);
+                    ends = Arrays.copyOf(ends, nbRuns * 2);
+                }
+                starts[nbRuns] = start;
+                ends[nbRuns++] = x;
+            }
+        }
+        rows[height] = nbRuns;
+        rowStarts[z] = rows;
+        runStarts[z] = Arrays.copyOf(starts, nbRuns);
+        runEnds[z] = Arrays.copyOf(ends, nbRuns);
+    }
+
+
+    private static boolean isSet(Object pixels, int i) {
+        if (pixels instanceof byte[])
+            return(((byte[]) pixels)[i] != 0);
+        if (pixels instanceof short[])
+            return(((short[]) pixels)[i] != 0);
+        return(((float[]) pixels)[i] > 0);
+    }
+
+
+    /**
+     * Merge runs of row y1 of plane z1 with touching runs (diagonals included) of row y2 of plane z2
+     */
+    private void unionRows(int z1, int y1, int z2, int y2) {
+        int r1 = rowStarts[z1][y1], end1 = rowStarts[z1][y1+1];
+        int r2 = rowStarts[z2][y2], end2 = rowStarts[z2][y2+1];
+        while (r1 < end1 && r2 < end2) {
+            if (runStarts[z1][r1] <= runEnds[z2][r2] && runStarts[z2][r2] <= runEnds[z1][r1])
+                union(planeOffsets[z1] + r1, planeOffsets[z2] + r2);
+            if (runEnds[z1][r1] < runEnds[z2][r2])
+                r1++;
+            else
+                r2++;
+        }
+    }
+
+
+    private int find(int run) {
+        while (parent[run] != run) {
+            parent[run] = parent[parent[run]];
+            run = parent[run];
+        }
+        return(run);
+    }
+
+
+    private void union(int run1, int run2) {
+        int root1 = find(run1), root2 = find(run2);
+        if (root1 < root2)
+            parent[root2] = root1;
+        else if (root2 < root1)
+            parent[root1] = root2;
+    }
+}
@@ -0,0 +1,229 @@
+package DAPI_PML_Tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Wall time, CPU time, allocated bytes, heap used and object counts of the stages of an image
+ * CPU time and allocations are those of the thread running the stage (a Cellpose invocation shared by a chunk of images
+ * is split evenly between them). Heap used is sampled at the end of each stage, it is not a peak: stages of several
+ * images run at the same time and share the heap, so the only peak reported is the one of the batch
+ * Rows are written in timings.csv next to results.csv, summarized per stage with percentiles in timings.json
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class StageTimings {
+
+    public static final String OPEN = "open";
+    public static final String CELLPOSE = "cellpose";
+    public static final String BACKGROUND = "background";
+    public static final String FILTER_POP = "filterPop";
+    public static final String FOCI_DETECTION = "fociDetection";
+    public static final String COLOCALIZATION = "colocalization";
+    public static final String MEASUREMENT = "measurement";
+    public static final String DRAWING = "drawing";
+
+    public static final String HEADER = "Image name\tStage\tWall time (ms)\tCPU time (ms)\tAllocated (MB)\tHeap used at end (MB)\tObjects\n";
+    private static final double MB = 1024 * 1024;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final String imgName;
+    private final List<String> rows = new ArrayList<>();
+
+
+    public StageTimings(String imgName) {
+        this.imgName = imgName;
+    }
+
+
+    /**
+     * Stage running in the current thread, from start to end
+     */
+    public static class Stage {
+        private final String name;
+        private final long wall, cpu, allocated;
+        private double wallMs = -1, cpuMs = -1, allocatedMB = -1;
+
+        private Stage(String name) {
+            this.name = name;
+            this.wall = System.nanoTime();
+            this.cpu = cpuTime();
+            this.allocated = allocatedBytes();
+        }
+
+        /**
+         * Take end measures, once
+         */
+        public Stage end() {
+            if (wallMs < 0) {
+                long cpuEnd = cpuTime(), allocatedEnd = allocatedBytes();
+                wallMs = (System.nanoTime() - wall) / 1e6;
+                cpuMs = (cpu < 0 || cpuEnd < 0) ? -1 : (cpuEnd - cpu) / 1e6;
+                allocatedMB = (allocated < 0 || allocatedEnd < 0) ? -1 : (allocatedEnd - allocated) / MB;
+            }
+            return(this);
+        }
+    }
+
+
+    public static Stage start(String stage) {
+        return(new Stage(stage));
+    }
+
+
+    /**
+     * End the stage and record it with the number of objects it gave (-1 if not relevant)
+     */
+    public void stop(Stage stage, long objects) {
+        stop(stage, objects, 1);
+    }
+
+
+    /**
+     * End the stage and record its share for an image, when it ran for nbImages images (Cellpose on a chunk)
+     */
+    public synchronized void stop(Stage stage, long objects, int nbImages) {
+        stage.end();
+        Runtime runtime = Runtime.getRuntime();
+        double heapMB = (runtime.totalMemory() - runtime.freeMemory()) / MB;
+        rows.add(String.format(Locale.US, "%s\t%s\t%.1f\t%s\t%s\t%.1f\t%s", imgName, stage.name, stage.wallMs / nbImages,
+                               (stage.cpuMs < 0) ? "" : String.format(Locale.US, "%.1f", stage.cpuMs / nbImages),
+                               (stage.allocatedMB < 0) ? "" : String.format(Locale.US, "%.1f", stage.allocatedMB / nbImages),
+                               heapMB, (objects < 0) ? "" : Long.toString(objects)));
+    }
+
+
+    private static long cpuTime() {
+        return(THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1);
+    }
+
+
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+                return(threads.getThreadAllocatedBytes(Thread.currentThread().getId()));
+        }
+        return(-1);
+    }
+
+
+    /**
+     * Write rows of the image
+     */
+    public synchronized void write(Writer writer) throws IOException {
+        for (String row: rows)
+            writer.write(row + "\n");
+        writer.flush();
+    }
+
+
+    /**
+     * Reset peak usage of heap memory pools, at the start of a batch
+     */
+    public static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+                pool.resetPeakUsage();
+        }
+    }
+
+
+    /**
+     * Peak heap used since the last resetPeakHeap (or the JVM start), summed over heap memory pools (MB)
+     */
+    public static double peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return(peak / MB);
+    }
+
+
+    /**
+     * Summarize a timings file per stage: number of images, total, mean, median, 90th and 99th percentiles and max
+     * of each measure, written in a JSON file and printed as a table
+     */
+    public static void summarize(File timingsFile, File jsonFile, Tools tools) throws IOException {
+        String[] measures = {"wallMs", "cpuMs", "allocatedMB", "heapAtEndMB", "objects"};
+        LinkedHashMap<String, List<double[]>> stages = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(timingsFile))) {
+            reader.readLine();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 7)
+                    continue;
+                double[] values = new double[measures.length];
+                for (int m = 0; m < measures.length; m++)
+                    values[m] = fields[m + 2].isEmpty() ? Double.NaN : Double.parseDouble(fields[m + 2]);
+                stages.computeIfAbsent(fields[1], k -> new ArrayList<>()).add(values);
+            }
+        }
+
+        StringBuilder json = new StringBuilder("{");
+        StringBuilder table = new StringBuilder(String.format(Locale.US, "%-16s%8s%12s%12s%12s%12s%12s\n", "Stage", "Images", "Total (s)", "p50 (ms)", "p90 (ms)", "p99 (ms)", "Max (ms)"));
+        String stageSep = "\n";
+        for (String stage: stages.keySet()) {
+            List<double[]> rows = stages.get(stage);
+            json.append(stageSep).append("  \"").append(stage).append("\": {\"images\": ").append(rows.size());
+            for (int m = 0; m < measures.length; m++) {
+                double[] sorted = sortedValues(rows, m);
+                if (sorted.length == 0)
+                    continue;
+                double total = 0;
+                for (double v: sorted)
+                    total += v;
+                json.append(String.format(Locale.US, ", \"%s\": {\"total\": %.1f, \"mean\": %.1f, \"p50\": %.1f, \"p90\": %.1f, \"p99\": %.1f, \"max\": %.1f}",
+                                          measures[m], total, total / sorted.length, percentile(sorted, 50), percentile(sorted, 90),
+                                          percentile(sorted, 99), sorted[sorted.length - 1]));
+                if (m == 0)
+                    table.append(String.format(Locale.US, "%-16s%8d%12.1f%12.1f%12.1f%12.1f%12.1f\n", stage, rows.size(), total / 1000, percentile(sorted, 50),
+                                               percentile(sorted, 90), percentile(sorted, 99), sorted[sorted.length - 1]));
+            }
+            json.append("}");
+            stageSep = ",\n";
+        }
+        json.append("\n}\n");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(jsonFile, false))) {
+            writer.write(json.toString());
+        }
+        tools.print("Stage timings (wall time):\n" + table);
+    }
+
+
+    private static double[] sortedValues(List<double[]> rows, int measure) {
+        double[] values = new double[rows.size()];
+        int n = 0;
+        for (double[] row: rows) {
+            if (!Double.isNaN(row[measure]))
+                values[n++] = row[measure];
+        }
+        values = Arrays.copyOf(values, n);
+        Arrays.sort(values);
+        return(values);
+    }
+
+
+    /**
+     * Nearest-rank percentile of sorted values
+     */
+    private static double percentile(double[] sorted, double p) {
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return(sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))]);
+    }
+}
@@ -0,0 +1,270 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Grid of overlapping XY tiles covering all planes of an image, to filter or segment images too large for the GPU memory
+ * or for a single Cellpose run tile by tile
+ * Tile cores partition the image, each tile extends its core by a margin on each side (clipped to the image borders)
+ * - filtered tiles are stitched from their cores: with a margin of at least the kernel radius, result is the one of the whole image
+ * - label images of tiles are merged: nuclei cut by a tile border are taken from a tile where they are whole, nuclei found
+ *   in several tiles are matched by overlap and kept once
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class TileGrid {
+
+    // Nuclei of two tiles overlapping by this fraction of the smallest one are the same nucleus
+    private static final double MIN_OVERLAP = 0.5;
+
+    private final int width, height;
+    private final List<Tile> tiles = new ArrayList<>();
+
+
+    /**
+     * Tile of the grid, with its margins (x, y, width, height) and its core, in image coordinates
+     */
+    public static class Tile {
+        public final int index;
+        public final int x, y, width, height;
+        public final int coreX, coreY, coreWidth, coreHeight;
+
+        private Tile(int index, int x, int y, int width, int height, int coreX, int coreY, int coreWidth, int coreHeight) {
+            this.index = index;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.coreX = coreX;
+            this.coreY = coreY;
+            this.coreWidth = coreWidth;
+            this.coreHeight = coreHeight;
+        }
+    }
+
+
+    /**
+     * Grid of tiles with cores of at most tileSize pixels (a single tile if tileSize is 0) and the given margin
+     */
+    public TileGrid(int width, int height, int tileSize, int margin) {
+        this.width = width;
+        this.height = height;
+        int nx = (tileSize > 0) ? (width + tileSize - 1) / tileSize : 1;
+        int ny = (tileSize > 0) ? (height + tileSize - 1) / tileSize : 1;
+        for (int j = 0; j < ny; j++) {
+            int coreY0 = (int) ((long) j * height / ny), coreY1 = (int) ((long) (j+1) * height / ny);
+            int y0 = Math.max(0, coreY0 - margin), y1 = Math.min(height, coreY1 + margin);
+            for (int i = 0; i < nx; i++) {
+                int coreX0 = (int) ((long) i * width / nx), coreX1 = (int) ((long) (i+1) * width / nx);
+                int x0 = Math.max(0, coreX0 - margin), x1 = Math.min(width, coreX1 + margin);
+                tiles.add(new Tile(tiles.size(), x0, y0, x1 - x0, y1 - y0, coreX0, coreY0, coreX1 - coreX0, coreY1 - coreY0));
+            }
+        }
+    }
+
+
+    public List<Tile> getTiles() {
+        return(tiles);
+    }
+
+
+    public int getNbTiles() {
+        return(tiles.size());
+    }
+
+
+    /**
+     * Crop a tile of the image, with its margins, in all planes
+     */
+    public ImagePlus crop(ImagePlus img, Tile tile) {
+        ImageStack stack = img.getStack().crop(tile.x, tile.y, 0, tile.width, tile.height, img.getStackSize());
+        ImagePlus imgTile = new ImagePlus(img.getShortTitle() + "_tile" + tile.index, stack);
+        imgTile.setDimensions(img.getNChannels(), img.getNSlices(), img.getNFrames());
+        imgTile.setCalibration(img.getCalibration());
+        return(imgTile);
+    }
+
+
+    /**
+     * Crop all tiles of the image
+     */
+    public List<ImagePlus> crop(ImagePlus img) {
+        List<ImagePlus> imgTiles = new ArrayList<>();
+        for (Tile tile: tiles)
+            imgTiles.add(crop(img, tile));
+        return(imgTiles);
+    }
+
+
+    /**
+     * Filter the image tile by tile and stitch the cores of filtered tiles in float planes
+     * Tiles are cropped and copied in parallel, the filter gives an image of the size of its input tile
+     */
+    public float[][] stitch(ImagePlus img, UnaryOperator<ImagePlus> filter) {
+        int depth = img.getStackSize();
+        float[][] planes = new float[depth][width * height];
+        tiles.parallelStream().forEach(tile -> {
+            ImagePlus imgTile = crop(img, tile);
+            ImagePlus imgFiltered = filter.apply(imgTile);
+            int offsetX = tile.coreX - tile.x, offsetY = tile.coreY - tile.y;
+            for (int z = 0; z < depth; z++) {
+                ImageProcessor ip = imgFiltered.getStack().getProcessor(z+1);
+                for (int y = 0; y < tile.coreHeight; y++) {
+                    int row = (tile.coreY + y) * width + tile.coreX;
+                    for (int x = 0; x < tile.coreWidth; x++)
+                        planes[z][row + x] = ip.getf(offsetX + x, offsetY + y);
+                }
+            }
+            imgFiltered.flush();
+            imgTile.flush();
+        });
+        return(planes);
+    }
+
+
+    /**
+     * Size and cut flag (touching a border of the tile inside the image) of each label of a tile
+     */
+    private static class TileLabels {
+        final int[] sizes;
+        final boolean[] cut;
+
+        TileLabels(ImagePlus labels, Tile tile, int width, int height) {
+            ImageStack stack = labels.getStack();
+            int maxLabel = 0;
+            for (int z = 1; z <= stack.getSize(); z++)
+                maxLabel = Math.max(maxLabel, (int) stack.getProcessor(z).getStatistics().max);
+            sizes = new int[maxLabel + 1];
+            cut = new boolean[maxLabel + 1];
+            boolean cutLeft = tile.x > 0, cutRight = tile.x + tile.width < width;
+            boolean cutTop = tile.y > 0, cutBottom = tile.y + tile.height < height;
+            for (int z = 1; z <= stack.getSize(); z++) {
+                ImageProcessor ip = stack.getProcessor(z);
+                for (int y = 0; y < tile.height; y++) {
+                    boolean borderY = (y == 0 && cutTop) || (y == tile.height - 1 && cutBottom);
+                    for (int x = 0; x < tile.width; x++) {
+                        int label = (int) ip.getf(x, y);
+                        if (label == 0)
+                            continue;
+                        sizes[label]++;
+                        if (borderY || (x == 0 && cutLeft) || (x == tile.width - 1 && cutRight))
+                            cut[label] = true;
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Merge label images of the tiles (with their margins, in tiles order) in a label image of the whole image
+     * Whole nuclei (not touching a tile border inside the image) are merged first, a nucleus overlapping an already merged
+     * one by more than MIN_OVERLAP of the smallest is a duplicate and left out. Cut nuclei are merged next: left out if
+     * they belong to a whole nucleus, joined with the cut pieces of the same nucleus found in other tiles, added otherwise
+     * Labelled voxels are never overwritten. Labels are 16-bit, or 32-bit above 65535 nuclei
+     */
+    public ImagePlus mergeLabels(List<ImagePlus> tileLabels, ImagePlus img) {
+        int depth = img.getStackSize();
+        int[][] labels = new int[depth][width * height];
+        List<TileLabels> stats = new ArrayList<>();
+        for (Tile tile: tiles)
+            stats.add(new TileLabels(tileLabels.get(tile.index), tile, width, height));
+
+        // Size and whole flag of merged nuclei, by label
+        int[] sizes = new int[1024];
+        boolean[] whole = new boolean[1024];
+        int nbLabels = 0;
+        for (boolean wholePass: new boolean[]{true, false}) {
+            for (Tile tile: tiles) {
+                TileLabels tileStats = stats.get(tile.index);
+                ImageStack stack = tileLabels.get(tile.index).getStack();
+
+                // Overlap of each label of the pass with merged nuclei
+                HashMap<Long, Integer> overlaps = new HashMap<>();
+                for (int z = 0; z < depth; z++) {
+                    ImageProcessor ip = stack.getProcessor(z+1);
+                    for (int y = 0; y < tile.height; y++) {
+                        int row = (tile.y + y) * width + tile.x;
+                        for (int x = 0; x < tile.width; x++) {
+                            int label = (int) ip.getf(x, y);
+                            int merged = labels[z][row + x];
+                            if (label != 0 && merged != 0 && tileStats.cut[label] != wholePass)
+                                overlaps.merge(((long) label << 32) | merged, 1, Integer::sum);
+                        }
+                    }
+                }
+                int[] bestMerged = new int[tileStats.sizes.length];
+                int[] bestOverlap = new int[tileStats.sizes.length];
+                overlaps.forEach((key, overlap) -> {
+                    int label = (int) (key >>> 32);
+                    if (overlap > bestOverlap[label]) {
+                        bestOverlap[label] = overlap;
+                        bestMerged[label] = (int) (long) key;
+                    }
+                });
+
+                // Merged label of each label of the pass, 0 if left out
+                int[] target = new int[tileStats.sizes.length];
+                for (int label = 1; label < target.length; label++) {
+                    if (tileStats.sizes[label] == 0 || tileStats.cut[label] == wholePass)
+                        continue;
+                    int merged = bestMerged[label];
+                    if (merged != 0 && bestOverlap[label] >= MIN_OVERLAP * Math.min(tileStats.sizes[label], sizes[merged])) {
+                        if (!wholePass && !whole[merged])
+                            target[label] = merged;
+                    } else {
+                        target[label] = ++nbLabels;
+                        if (nbLabels == sizes.length) {
+                            sizes = Arrays.copyOf(sizes, 2 * nbLabels);
+                            whole = Arrays.copyOf(whole, 2 * nbLabels);
+                        }
+                        whole[nbLabels] = wholePass;
+                    }
+                }
+
+                for (int z = 0; z < depth; z++) {
+                    ImageProcessor ip = stack.getProcessor(z+1);
+                    for (int y = 0; y < tile.height; y++) {
+                        int row = (tile.y + y) * width + tile.x;
+                        for (int x = 0; x < tile.width; x++) {
+                            int merged = target[(int) ip.getf(x, y)];
+                            if (merged != 0 && labels[z][row + x] == 0) {
+                                labels[z][row + x] = merged;
+                                sizes[merged]++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            int[] plane = labels[z];
+            labels[z] = null;
+            if (nbLabels <= 65535) {
+                short[] pixels = new short[plane.length];
+                for (int i = 0; i < plane.length; i++)
+                    pixels[i] = (short) plane[i];
+                stack.addSlice(new ShortProcessor(width, height, pixels, null));
+            } else {
+                float[] pixels = new float[plane.length];
+                for (int i = 0; i < plane.length; i++)
+                    pixels[i] = plane[i];
+                stack.addSlice(new FloatProcessor(width, height, pixels, null));
+            }
+        }
+        ImagePlus imgLabels = new ImagePlus(img.getShortTitle() + "-cellpose", stack);
+        imgLabels.setDimensions(img.getNChannels(), img.getNSlices(), img.getNFrames());
+        imgLabels.setCalibration(img.getCalibration());
+        return(imgLabels);
+    }
+}
@@ -1,23 +1,28 @@
 package DAPI_PML_Tools;
 
 import DAPI_PML_Tools.Cellpose.CellposeSegmentImgPlusAdvanced;
+import DAPI_PML_Tools.Cellpose.CellposeServer;
 import DAPI_PML_Tools.Cellpose.CellposeTaskSettings;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.Roi;
+import ij.ImageStack;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
-import ij.measure.ResultsTable;
 import ij.plugin.RGBStackMerge;
-import ij.plugin.filter.Analyzer;
+import ij.plugin.ZProjector;
 import ij.process.AutoThresholder;
+import ij.process.ImageProcessor;
 import java.awt.Color;
 import java.awt.Font;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
 import javax.swing.ImageIcon;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
@@ -25,12 +30,15 @@ import loci.formats.FormatException;
 import loci.formats.meta.IMetadata;
 import loci.plugins.util.ImageProcessorReader;
 import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
 import mcib3d.geom2.Objects3DIntPopulation;
 import mcib3d.geom2.Objects3DIntPopulationComputation;
+import mcib3d.geom2.VoxelInt;
 import mcib3d.geom2.measurements.MeasureCentroid;
 import mcib3d.image3d.ImageHandler;
 import mcib3d.image3d.ImageInt;
 import mcib3d.image3d.ImageLabeller;
+import net.haesleinhuepf.clij.CLIJ;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij2.CLIJ2;
 import org.apache.commons.io.FilenameUtils;
@@ -44,19 +52,27 @@ public class Tools {
     public final ImageIcon icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
     private final String helpUrl = "https://github.com/orion-cirb/DAPI_PML/tree/version2";
     
-    private CLIJ2 clij2 = CLIJ2.getInstance();
+    // CLIJ2 instance, acquired on first use, null if no OpenCL device is available
+    private CLIJ2 clij2;
+    private boolean clij2Checked = false;
+    private FociGpuPipeline gpuPipeline;
+    private FociFilters cpuFilters;
+    private LabelCache labelCache;
     
     private String[] chDialog = new String[]{"DAPI nuclei", "PML foci"};
     private Calibration cal;
-    public double pixArea;
    
     // Nuclei detection with Cellpose
     private String cellposeEnvDir = IJ.isWindows()? System.getProperty("user.home")+File.separator+"miniconda3"+File.separator+"envs"+File.separator+"CellPose" : "/opt/miniconda3/envs/cellpose";
     private final String cellposeModelPath = IJ.isWindows()? System.getProperty("user.home")+"\\.cellpose\\models\\" : "";
     private String cellposeModel = "cyto2";
     private int cellposeDiam = 100;
+    private boolean cellposeServer = true;
+    private int cellposeChunkSize = 10;
     private double minAreaNuc = 50; // µm2
     private double maxAreaNuc = 550; // µm2
+    private String cellposeCacheDir = System.getProperty("user.home")+File.separator+".DAPI_PML"+File.separator+"cellpose_cache";
+    private double cellposeCacheSize = 0; // GB, 0 = no cache (default)
     
     // PML foci detection with DoG + Thresholding
     private final double dogSigma1 = 1;
@@ -64,6 +80,25 @@ public class Tools {
     private String thMethod = "Triangle";
     private double minAreaFoci = 0.05; // µm2
     private double maxAreaFoci = 3; // µm2
+    public static final String[] FOCI_ENGINES = {"Auto", "GPU", "CPU"};
+    private String fociEngine = FOCI_ENGINES[0];
+    // Parameter sweep, comma-separated lists (empty = no sweep)
+    private String sweepThMethods = "";
+    private String sweepMinAreaFoci = "";
+    private String sweepMaxAreaFoci = "";
+    
+    // Batch processing
+    private int nbWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private double memoryBudget = Math.max(1, Runtime.getRuntime().maxMemory() / (2.0*1024*1024*1024)); // GB
+    private boolean resume = false;
+    private boolean streaming = false;
+    private int tileSize = 0; // pixels, 0 = whole image
+    private int tileOverlap = 100; // pixels
+    public static final String[] OVERLAYS = {"Full", "Max projection", "Downsampled", "None"};
+    private String overlay = OVERLAYS[0];
+    public static final String[] OVERLAY_FORMATS = {"Merged TIFF", "Labels OME-TIFF"};
+    private String overlayFormat = OVERLAY_FORMATS[0];
+    private static final int PREVIEW_FACTOR = 4;
     
 
     /**
@@ -227,6 +262,52 @@ public class Tools {
     }
     
     
+    /**
+     * Calibration of the image of the metadata (in microns)
+     */
+    public static Calibration getCalibration(IMetadata meta) {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = meta.getPixelsPhysicalSizeX(0).value().doubleValue();
+        cal.pixelHeight = (meta.getPixelsPhysicalSizeY(0) != null) ? meta.getPixelsPhysicalSizeY(0).value().doubleValue() : cal.pixelWidth;
+        cal.pixelDepth = (meta.getPixelsPhysicalSizeZ(0) != null) ? meta.getPixelsPhysicalSizeZ(0).value().doubleValue() : 1;
+        cal.setUnit("microns");
+        return(cal);
+    }
+    
+    
+    /**
+     * Open the given channels of the current image of the reader
+     * Only the planes of the requested channels are decoded, each file is read once for all channels
+     * The size reported is the one of the decoded planes kept in memory, not the bytes read from disk (compressed or not)
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImagePlus[] openChannels(ImageProcessorReader reader, IMetadata meta, String imgName, int[] channels) throws FormatException, IOException {
+        long start = System.currentTimeMillis();
+        long bytesDecoded = 0;
+        
+        Calibration calImg = getCalibration(meta);
+        
+        ImagePlus[] imgs = new ImagePlus[channels.length];
+        for (int c = 0; c < channels.length; c++) {
+            ImageStack stack = new ImageStack(reader.getSizeX(), reader.getSizeY());
+            for (int t = 0; t < reader.getSizeT(); t++) {
+                for (int z = 0; z < reader.getSizeZ(); z++) {
+                    ImageProcessor ip = reader.openProcessors(reader.getIndex(z, channels[c], t))[0];
+                    stack.addSlice(ip);
+                    bytesDecoded += (long) ip.getPixelCount() * ((ip.getBitDepth() == 24) ? 4 : ip.getBitDepth() / 8);
+                }
+            }
+            imgs[c] = new ImagePlus(imgName + " - C=" + channels[c], stack);
+            imgs[c].setDimensions(1, reader.getSizeZ(), reader.getSizeT());
+            imgs[c].setCalibration(calImg);
+        }
+        
+        System.out.println("Decoded " + bytesDecoded/(1024*1024) + " MB of pixels (in memory, not read from disk) from " + channels.length + " channels in " + (System.currentTimeMillis() - start) + " ms");
+        return(imgs);
+    }
+    
+    
     /**
      * Generate dialog box
      */
@@ -242,15 +323,33 @@ public class Tools {
         gd.addMessage("Nuclei detection", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("Min nucleus area (µm2): ", minAreaNuc, 2);
         gd.addNumericField("Max nucleus area (µm2): ", maxAreaNuc, 2);
+        gd.addCheckbox("Keep Cellpose model loaded between images", cellposeServer);
+        gd.addNumericField("Otherwise, images per Cellpose run: ", cellposeChunkSize, 0);
+        gd.addDirectoryField("Cellpose cache folder: ", cellposeCacheDir);
+        gd.addNumericField("Cellpose cache size (GB, 0 = no cache): ", cellposeCacheSize, 1);
         
         gd.addMessage("Foci detection", Font.getFont("Monospace"), Color.blue);
         String[] thMethods = AutoThresholder.getMethods();
         gd.addChoice("Thresholding method: ",thMethods, thMethod);
         gd.addNumericField("Min foci area (µm2): ", minAreaFoci, 3);
         gd.addNumericField("Max foci area (µm2): ", maxAreaFoci, 3);
+        gd.addChoice("Filtering engine: ", FOCI_ENGINES, fociEngine);
+        gd.addStringField("Sweep thresholding methods: ", sweepThMethods, 20);
+        gd.addStringField("Sweep min foci areas (µm2): ", sweepMinAreaFoci, 20);
+        gd.addStringField("Sweep max foci areas (µm2): ", sweepMaxAreaFoci, 20);
         
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY calibration (µm): ", cal.pixelHeight, 4);
+        
+        gd.addMessage("Batch processing", Font.getFont("Monospace"), Color.blue);
+        gd.addNumericField("Number of workers: ", nbWorkers, 0);
+        gd.addNumericField("Memory budget (GB): ", memoryBudget, 1);
+        gd.addCheckbox("Resume last run", resume);
+        gd.addCheckbox("Stream PML planes from disk (large images)", streaming);
+        gd.addNumericField("Tile size (pixels, 0 = whole image): ", tileSize, 0);
+        gd.addNumericField("Tile overlap (pixels): ", tileOverlap, 0);
+        gd.addChoice("Overlay images: ", OVERLAYS, overlay);
+        gd.addChoice("Overlay format: ", OVERLAY_FORMATS, overlayFormat);
         gd.addHelp(helpUrl);
         gd.showDialog();
         
@@ -260,14 +359,30 @@ public class Tools {
         
         minAreaNuc = gd.getNextNumber();
         maxAreaNuc = gd.getNextNumber();
+        cellposeServer = gd.getNextBoolean();
+        cellposeChunkSize = (int) gd.getNextNumber();
+        cellposeCacheDir = gd.getNextString();
+        cellposeCacheSize = gd.getNextNumber();
         
         thMethod = gd.getNextChoice();
         minAreaFoci = gd.getNextNumber();
         maxAreaFoci = gd.getNextNumber();
+        fociEngine = gd.getNextChoice();
+        sweepThMethods = gd.getNextString();
+        sweepMinAreaFoci = gd.getNextString();
+        sweepMaxAreaFoci = gd.getNextString();
 
         cal.pixelHeight = cal.pixelWidth = gd.getNextNumber();
         cal.pixelDepth = 1;
-        pixArea = cal.pixelHeight*cal.pixelWidth;
+        
+        nbWorkers = (int) gd.getNextNumber();
+        memoryBudget = gd.getNextNumber();
+        resume = gd.getNextBoolean();
+        streaming = gd.getNextBoolean();
+        tileSize = (int) gd.getNextNumber();
+        tileOverlap = (int) gd.getNextNumber();
+        overlay = gd.getNextChoice();
+        overlayFormat = gd.getNextChoice();
         
         if (gd.wasCanceled())
             chOrder = null;
@@ -276,53 +391,254 @@ public class Tools {
     
     
     /**
-     * Detect objects in 2D using Cellpose
+     * Read parameters from properties instead of dialog box (headless mode)
+     * Missing properties keep the dialog default values
      */
-    public ImagePlus cellposeDetection(ImagePlus imgIn) {
-        // Define CellPose settings
-        CellposeTaskSettings settings = new CellposeTaskSettings(cellposeModelPath+cellposeModel, 1, cellposeDiam, cellposeEnvDir);
-        settings.useGpu(true);
-
-        // Run Cellpose
-        ImagePlus img = imgIn.duplicate();
-        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, img);
-        ImagePlus imgOut = cellpose.run();
+    public String[] readParameters(Properties props, String[] chMeta) {
+        String[] chOrder = new String[chDialog.length];
+        String[] chKeys = {"dapiChannel", "pmlChannel"};
+        for (int n = 0; n < chOrder.length; n++) {
+            String ch = props.getProperty(chKeys[n], chMeta[Math.min(n, chMeta.length-1)]);
+            if (!Arrays.asList(chMeta).contains(ch) && ch.matches("\\d+") && Integer.parseInt(ch) < chMeta.length)
+                ch = chMeta[Integer.parseInt(ch)];
+            if (!Arrays.asList(chMeta).contains(ch))
+                throw new IllegalArgumentException("Unknown channel " + ch + " for " + chDialog[n] + ", channels are " + Arrays.toString(chMeta));
+            chOrder[n] = ch;
+        }
+        
+        cellposeEnvDir = props.getProperty("cellposeEnvDir", cellposeEnvDir);
+        cellposeModel = props.getProperty("cellposeModel", cellposeModel);
+        cellposeDiam = Integer.parseInt(props.getProperty("cellposeDiam", "" + cellposeDiam));
+        cellposeServer = Boolean.parseBoolean(props.getProperty("cellposeServer", "" + cellposeServer));
+        cellposeChunkSize = Integer.parseInt(props.getProperty("cellposeChunkSize", "" + cellposeChunkSize));
+        minAreaNuc = Double.parseDouble(props.getProperty("minAreaNuc", "" + minAreaNuc));
+        maxAreaNuc = Double.parseDouble(props.getProperty("maxAreaNuc", "" + maxAreaNuc));
+        cellposeCacheDir = props.getProperty("cellposeCacheDir", cellposeCacheDir);
+        cellposeCacheSize = Double.parseDouble(props.getProperty("cellposeCacheSize", "" + cellposeCacheSize));
+        
+        thMethod = props.getProperty("thMethod", thMethod);
+        if (!Arrays.asList(AutoThresholder.getMethods()).contains(thMethod))
+            throw new IllegalArgumentException("Unknown thresholding method " + thMethod + ", methods are " + Arrays.toString(AutoThresholder.getMethods()));
+        minAreaFoci = Double.parseDouble(props.getProperty("minAreaFoci", "" + minAreaFoci));
+        maxAreaFoci = Double.parseDouble(props.getProperty("maxAreaFoci", "" + maxAreaFoci));
+        fociEngine = props.getProperty("fociEngine", fociEngine);
+        if (!Arrays.asList(FOCI_ENGINES).contains(fociEngine))
+            throw new IllegalArgumentException("Unknown filtering engine " + fociEngine + ", engines are " + Arrays.toString(FOCI_ENGINES));
+        sweepThMethods = props.getProperty("sweepThMethods", sweepThMethods);
+        sweepMinAreaFoci = props.getProperty("sweepMinAreaFoci", sweepMinAreaFoci);
+        sweepMaxAreaFoci = props.getProperty("sweepMaxAreaFoci", sweepMaxAreaFoci);
+        for (String method: splitList(sweepThMethods)) {
+            if (!Arrays.asList(AutoThresholder.getMethods()).contains(method))
+                throw new IllegalArgumentException("Unknown thresholding method " + method + " in sweep, methods are " + Arrays.toString(AutoThresholder.getMethods()));
+        }
+        
+        cal.pixelHeight = cal.pixelWidth = Double.parseDouble(props.getProperty("pixelSize", "" + cal.pixelWidth));
+        cal.pixelDepth = 1;
         
-        closeImage(img);
-        return(imgOut);
+        nbWorkers = Integer.parseInt(props.getProperty("nbWorkers", "" + nbWorkers));
+        memoryBudget = Double.parseDouble(props.getProperty("memoryBudget", "" + memoryBudget));
+        resume = Boolean.parseBoolean(props.getProperty("resume", "" + resume));
+        streaming = Boolean.parseBoolean(props.getProperty("streaming", "" + streaming));
+        tileSize = Integer.parseInt(props.getProperty("tileSize", "" + tileSize));
+        tileOverlap = Integer.parseInt(props.getProperty("tileOverlap", "" + tileOverlap));
+        overlay = props.getProperty("overlay", overlay);
+        if (!Arrays.asList(OVERLAYS).contains(overlay))
+            throw new IllegalArgumentException("Unknown overlay " + overlay + ", overlays are " + Arrays.toString(OVERLAYS));
+        overlayFormat = props.getProperty("overlayFormat", overlayFormat);
+        if (!Arrays.asList(OVERLAY_FORMATS).contains(overlayFormat))
+            throw new IllegalArgumentException("Unknown overlay format " + overlayFormat + ", formats are " + Arrays.toString(OVERLAY_FORMATS));
+        return(chOrder);
     }
     
     
-    public double computeBackground(ImagePlus maskPop, ImagePlus img) {
-        ImagePlus maskBg = maskPop.duplicate();
-        IJ.setRawThreshold(maskBg, 1, 65535);
-        IJ.run(maskBg, "Convert to Mask", "");
-        IJ.run(maskBg, "Invert", "");
-        IJ.run(maskBg, "Create Selection", "");
-        Roi roiBg = maskBg.getRoi();
-        
-        ImagePlus imgBg = img.duplicate();
-        imgBg.setRoi(roiBg);
+    /**
+     * Get the parameters chosen in the dialog box as an immutable object
+     */
+    public Parameters getParameters(int[] chIndexes) {
+        return(new Parameters(chIndexes[0], chIndexes[1], cal, cellposeEnvDir, cellposeModelPath+cellposeModel, cellposeDiam, cellposeServer, cellposeChunkSize, minAreaNuc, maxAreaNuc,
+                              dogSigma1, dogSigma2, thMethod, minAreaFoci, maxAreaFoci, fociEngine, nbWorkers, (long) (memoryBudget*1024), resume, streaming, overlay, overlayFormat,
+                              tileSize, tileOverlap, cellposeCacheDir, (long) (cellposeCacheSize*1024), splitList(sweepThMethods),
+                              Arrays.stream(splitList(sweepMinAreaFoci)).mapToDouble(Double::parseDouble).toArray(),
+                              Arrays.stream(splitList(sweepMaxAreaFoci)).mapToDouble(Double::parseDouble).toArray()));
+    }
+    
+    
+    /**
+     * Values of a comma-separated list, empty if the list is empty
+     */
+    private static String[] splitList(String list) {
+        return(list.trim().isEmpty() ? new String[0] : list.trim().split("\\s*,\\s*"));
+    }
+    
+    
+    /**
+     * Define Cellpose settings
+     */
+    public CellposeTaskSettings cellposeSettings(Parameters params) {
+        CellposeTaskSettings settings = new CellposeTaskSettings(params.cellposeModel, 1, params.cellposeDiam, params.cellposeEnvDir);
+        settings.useGpu(true);
+        return(settings);
+    }
+    
+    
+    /**
+     * Detect objects in 2D using Cellpose
+     * If a Cellpose server is given, use it instead of starting a new Cellpose process
+     */
+    public ImagePlus cellposeDetection(ImagePlus imgIn, Parameters params, CellposeServer server) {
+        ArrayList<ImagePlus> imgs = new ArrayList<>();
+        imgs.add(imgIn);
+        return(cellposeDetection(imgs, params, server).get(0));
+    }
+    
+    
+    /**
+     * Detect objects in 2D using Cellpose in several images
+     * Labels of images already segmented with the same settings are read from the Cellpose cache, only other images are segmented
+     */
+    public List<ImagePlus> cellposeDetection(List<ImagePlus> imgs, Parameters params, CellposeServer server) {
+        LabelCache cache = getLabelCache(params);
+        if (cache == null)
+            return(cellposeTiled(imgs, params, server));
         
-        ResultsTable rt = new ResultsTable();
-        Analyzer analyzer = new Analyzer(imgBg, Analyzer.MEDIAN, rt);
-        analyzer.measure();
-        double bg = rt.getValue("Median", 0);
+        String settings = cellposeSettings(params).key() + ((params.tileSize > 0) ? "|" + params.tileSize + "|" + params.tileOverlap : "");
+        List<ImagePlus> imgsOut = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        List<ImagePlus> misses = new ArrayList<>();
+        for (ImagePlus img: imgs) {
+            String key = LabelCache.key(img, settings);
+            ImagePlus labels = cache.get(key, img);
+            keys.add(key);
+            imgsOut.add(labels);
+            if (labels == null)
+                misses.add(img);
+        }
+        if (misses.size() < imgs.size())
+            print("- Nuclei of " + (imgs.size() - misses.size()) + " image(s) read from Cellpose cache -");
+        if (misses.isEmpty())
+            return(imgsOut);
         
-        closeImage(maskBg);
-        closeImage(imgBg);
-        return(bg);
+        List<ImagePlus> segmented = cellposeTiled(misses, params, server);
+        for (int i = 0, m = 0; i < imgs.size(); i++) {
+            if (imgsOut.get(i) != null)
+                continue;
+            ImagePlus labels = segmented.get(m++);
+            imgsOut.set(i, labels);
+            if (labels != null) {
+                try {
+                    cache.put(keys.get(i), labels);
+                } catch (IOException e) {
+                    IJ.log("Cellpose cache not written: " + e.getMessage());
+                }
+            }
+        }
+        return(imgsOut);
+    }
+    
+    
+    /**
+     * Cellpose cache of the parameters, null if disabled
+     */
+    public synchronized LabelCache getLabelCache(Parameters params) {
+        if (params.cellposeCacheSize <= 0 || params.cellposeCacheDir.isEmpty())
+            return(null);
+        if (labelCache == null)
+            labelCache = new LabelCache(params.cellposeCacheDir, params.cellposeCacheSize*1024*1024);
+        return(labelCache);
+    }
+    
+    
+    /**
+     * Detect objects in 2D using Cellpose in several images
+     * Images larger than the tile size are segmented by overlapping tiles, merged back in a label image of the whole image
+     */
+    private List<ImagePlus> cellposeTiled(List<ImagePlus> imgs, Parameters params, CellposeServer server) {
+        List<ImagePlus> imgsIn = new ArrayList<>();
+        List<TileGrid> grids = new ArrayList<>();
+        for (ImagePlus img: imgs) {
+            TileGrid grid = new TileGrid(img.getWidth(), img.getHeight(), params.tileSize, params.tileOverlap);
+            grids.add(grid);
+            if (grid.getNbTiles() > 1) {
+                print(img.getTitle() + " - Segmenting " + grid.getNbTiles() + " tiles -");
+                imgsIn.addAll(grid.crop(img));
+            } else
+                imgsIn.add(img);
+        }
+        if (imgsIn.size() == imgs.size())
+            return(cellposeRun(imgsIn, params, server));
+
+        List<ImagePlus> imgsOut = new ArrayList<>();
+        List<ImagePlus> tilesOut = cellposeRun(imgsIn, params, server);
+        int first = 0;
+        for (int i = 0; i < imgs.size(); i++) {
+            int nbTiles = grids.get(i).getNbTiles();
+            List<ImagePlus> tileLabels = tilesOut.subList(first, first + nbTiles);
+            if (nbTiles == 1)
+                imgsOut.add(tileLabels.get(0));
+            else {
+                imgsOut.add(tileLabels.contains(null) ? null : grids.get(i).mergeLabels(tileLabels, imgs.get(i)));
+                for (int t = first; t < first + nbTiles; t++) {
+                    closeImage(imgsIn.get(t));
+                    if (tilesOut.get(t) != null)
+                        closeImage(tilesOut.get(t));
+                }
+            }
+            first += nbTiles;
+        }
+        return(imgsOut);
+    }
+    
+    
+    /**
+     * Run Cellpose on several images
+     * Without Cellpose server, all images are segmented with a single Cellpose process
+     * Images are not duplicated: the server only reads them, CellposeSegmentImgPlusAdvanced saves a copy of each frame
+     */
+    private List<ImagePlus> cellposeRun(List<ImagePlus> imgs, Parameters params, CellposeServer server) {
+        List<ImagePlus> imgsOut = new ArrayList<>();
+        if (server != null) {
+            for (ImagePlus img: imgs) {
+                try {
+                    imgsOut.add(server.run(img));
+                } catch (IOException e) {
+                    IJ.log("Cellpose server failed: " + e.getMessage());
+                    imgsOut.add(null);
+                }
+            }
+        } else {
+            CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(cellposeSettings(params), imgs);
+            imgsOut = cellpose.runAll();
+        }
+        return(imgsOut);
+    }
+    
+    
+    /**
+     * Compute background noise as the median intensity of pixels outside objects, in all planes
+     */
+    public double computeBackground(ImagePlus maskPop, ImagePlus img) {
+        return(printBackground(BackgroundStats.compute(maskPop, img)));
+    }
+    
+    
+    /**
+     * Print background statistics and return its median
+     */
+    public double printBackground(BackgroundStats stats) {
+        System.out.println("PML background: median = " + stats.median() + ", MAD = " + stats.mad() + ", 5-95th percentiles = "
+                           + stats.percentile(5) + "-" + stats.percentile(95) + " (" + stats.getCount() + " pixels)");
+        return(stats.median());
     }
     
     
     /**
      * Get population of objects from labelled mask and filter them out by area
      */
-    public Objects3DIntPopulation filterPop(ImagePlus mask) {
+    public Objects3DIntPopulation filterPop(ImagePlus mask, Parameters params) {
         Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(mask));
         pop = new Objects3DIntPopulationComputation(pop).getExcludeBorders(ImageHandler.wrap(mask), false);
         System.out.println("Nb nuclei detected: "+pop.getNbObjects());
-        pop = new Objects3DIntPopulationComputation(pop).getFilterSize(minAreaNuc/pixArea, maxAreaNuc/pixArea);
+        pop = new Objects3DIntPopulationComputation(pop).getFilterSize(params.minAreaNuc/params.pixArea, params.maxAreaNuc/params.pixArea);
         System.out.println("Nb nuclei remaining after size filtering: "+ pop.getNbObjects());
         pop.resetLabels();
         return(pop);
@@ -331,37 +647,207 @@ public class Tools {
     
     /**
      * Detect dots with DoG filtering + automatic thresholding + fill holes
+     * With CLIJ2, images larger than the tile size are filtered by tiles, so that device memory is bounded by the tile size:
+     * tiles are filtered one after the other on the shared device, the stitched DoG is thresholded and filled on CPU
+     */
+    public Objects3DIntPopulation fociDetection(ImagePlus imgIn, Parameters params) {
+        long start = System.currentTimeMillis();
+        ImagePlus imgFill = null;
+        if (useGpu(params)) {
+            try {
+                TileGrid grid = new TileGrid(imgIn.getWidth(), imgIn.getHeight(), params.tileSize,
+                                             FociFilters.kernelRadius(Math.max(params.dogSigma1, params.dogSigma2)));
+                if (grid.getNbTiles() > 1) {
+                    // DoG by tiles on the device, stitched on the host, then thresholded (host histogram) and filled on CPU:
+                    // the whole image is never pushed back to the device
+                    float[][] dog = grid.stitch(imgIn, tile -> DOG(tile, params.dogSigma1, params.dogSigma2));
+                    imgFill = getCpuFilters().fociMask(dog, imgIn, params.thMethod);
+                } else
+                    imgFill = getGpuPipeline().fociMask(imgIn, params.dogSigma1, params.dogSigma2, params.thMethod);
+                System.out.println("PML foci mask computed with CLIJ2 (" + grid.getNbTiles() + " tile(s)) in " + (System.currentTimeMillis() - start) + " ms");
+            } catch (RuntimeException e) {
+                // OpenCL errors (out of device memory, unsupported driver...) fall back to CPU
+                if (params.fociEngine.equals("GPU"))
+                    throw e;
+                print("CLIJ2 failed (" + e.getMessage() + "), PML foci detected on CPU");
+                releaseGpuBuffers();
+                start = System.currentTimeMillis();
+            }
+        }
+        if (imgFill == null) {
+            FociFilters filters = getCpuFilters();
+            imgFill = filters.fociMask(imgIn, params.dogSigma1, params.dogSigma2, params.thMethod);
+            System.out.println("PML foci mask computed on CPU with " + filters.getNbThreads() + " threads in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        return(fociPopulation(imgFill, params));
+    }
+    
+    
+    /**
+     * Detect dots with DoG filtering + automatic thresholding + fill holes, reading PML planes on demand (streaming mode)
+     * Filtering runs on CPU, by chunks of planes
      */
-    public Objects3DIntPopulation fociDetection(ImagePlus imgIn) {
-        ImagePlus imgDOG = DOG(imgIn, dogSigma1, dogSigma2);
-        ImagePlus imgBin = threshold(imgDOG, thMethod);
-        ImagePlus imgFill = fillHoles(imgBin);
-        imgFill.setCalibration(cal);
+    public Objects3DIntPopulation fociDetection(PlaneReader planes, Parameters params) throws IOException {
+        long start = System.currentTimeMillis();
+        FociFilters filters = getCpuFilters();
+        ImagePlus imgFill = filters.fociMask(planes, params.dogSigma1, params.dogSigma2, params.thMethod);
+        System.out.println("PML foci mask streamed on CPU with " + filters.getNbThreads() + " threads in " + (System.currentTimeMillis() - start) + " ms");
+        return(fociPopulation(imgFill, params));
+    }
+    
+    
+    /**
+     * Detect dots for all parameter sets of a sweep: DoG filtering once, thresholding and fill holes per method
+     * on the same engine as fociDetection, one labelling per distinct mask filtered by each pair of area bounds
+     * Populations are given in the order of the sweep parameter sets
+     */
+    public Objects3DIntPopulation[] fociDetection(ImagePlus imgIn, Parameters params, ParameterSweep sweep) {
+        long start = System.currentTimeMillis();
+        String[] thMethods = sweep.getThMethods();
+        FociMasks masks = fociMasks(imgIn, params, thMethods);
         
-        Objects3DIntPopulation pop = getPopFromImage(imgFill);
-        System.out.println("Nb PML foci detected: "+pop.getNbObjects());
-        pop = new Objects3DIntPopulationComputation(pop).getFilterSize(minAreaFoci/pixArea, maxAreaFoci/pixArea);
+        double[] minSizes = sweep.getMinAreas().clone(), maxSizes = sweep.getMaxAreas().clone();
+        for (int i = 0; i < minSizes.length; i++) {
+            minSizes[i] /= params.pixArea;
+            maxSizes[i] /= params.pixArea;
+        }
+        // One labelling per distinct mask, shared by the methods giving it
+        Objects3DIntPopulation[][] maskPops = new Objects3DIntPopulation[masks.getMasks().length][];
+        for (int i = 0; i < maskPops.length; i++) {
+            maskPops[i] = new SparseLabeller().label(masks.getMasks()[i], minSizes, maxSizes, params.getCalibration());
+            closeImage(masks.getMasks()[i]);
+        }
+        Objects3DIntPopulation[] pops = new Objects3DIntPopulation[sweep.size()];
+        for (int m = 0; m < thMethods.length; m++)
+            System.arraycopy(maskPops[masks.maskIndex(m)], 0, pops, m * minSizes.length, minSizes.length);
+        System.out.println("PML foci of " + sweep.size() + " parameter sets detected in " + (System.currentTimeMillis() - start) + " ms");
+        return(pops);
+    }
+    
+    
+    /**
+     * Foci masks of all thresholding methods of a sweep, DoG being computed once
+     * With CLIJ2, DoG is computed on the device, by tiles if larger than the tile size, then thresholded and filled
+     * on the device for a single tile, on CPU for several tiles as in fociDetection. All steps run on CPU otherwise
+     */
+    private FociMasks fociMasks(ImagePlus img, Parameters params, String[] thMethods) {
+        if (useGpu(params)) {
+            try {
+                TileGrid grid = new TileGrid(img.getWidth(), img.getHeight(), params.tileSize,
+                                             FociFilters.kernelRadius(Math.max(params.dogSigma1, params.dogSigma2)));
+                float[][] dog = grid.stitch(img, tile -> DOG(tile, params.dogSigma1, params.dogSigma2));
+                return((grid.getNbTiles() > 1) ? getCpuFilters().fociMasks(dog, img, thMethods)
+                                               : getGpuPipeline().fociMasks(dog, img, thMethods));
+            } catch (RuntimeException e) {
+                if (params.fociEngine.equals("GPU"))
+                    throw e;
+                print("CLIJ2 failed (" + e.getMessage() + "), PML foci detected on CPU");
+                releaseGpuBuffers();
+            }
+        }
+        FociFilters filters = getCpuFilters();
+        return(filters.fociMasks(filters.differenceOfGaussian2D(img, params.dogSigma1, params.dogSigma2), img, thMethods));
+    }
+    
+    
+    /**
+     * Get population of foci from their binary mask and filter them out by area
+     * Sparse labelling gives the same population as getPopFromImage + getFilterSize + resetLabels
+     */
+    private Objects3DIntPopulation fociPopulation(ImagePlus imgFill, Parameters params) {
+        SparseLabeller labeller = new SparseLabeller();
+        Objects3DIntPopulation pop = labeller.label(imgFill, params.minAreaFoci/params.pixArea, params.maxAreaFoci/params.pixArea, params.getCalibration());
+        System.out.println("Nb PML foci detected: "+labeller.getNbComponents());
         System.out.println("Nb PML foci remaining after size filtering: "+ pop.getNbObjects());
-        pop.resetLabels();
         
-        closeImage(imgDOG);
-        closeImage(imgBin);
         closeImage(imgFill);
         return(pop);
     }
+    
+    
+    /**
+     * Return CLIJ2 instance, acquired on first call, or null if no OpenCL device is available
+     */
+    public synchronized CLIJ2 getClij2() {
+        if (!clij2Checked) {
+            clij2Checked = true;
+            // Device can be chosen with -Dclij.device=<name>, to use a CPU OpenCL driver (POCL) for instance
+            String device = System.getProperty("clij.device");
+            try {
+                if (!CLIJ.getAvailableDeviceNames().isEmpty())
+                    clij2 = (device == null) ? CLIJ2.getInstance() : CLIJ2.getInstance(device);
+            } catch (Throwable e) {
+                clij2 = null;
+            }
+            if (clij2 == null)
+                print("No OpenCL device found, PML foci will be detected on CPU");
+        }
+        return(clij2);
+    }
+    
+    
+    /**
+     * Fused CLIJ2 foci pipeline, keeping its buffers between images
+     */
+    private synchronized FociGpuPipeline getGpuPipeline() {
+        if (gpuPipeline == null)
+            gpuPipeline = new FociGpuPipeline(getClij2());
+        return(gpuPipeline);
+    }
+    
+    
+    /**
+     * Release device buffers kept by the fused CLIJ2 foci pipeline
+     */
+    public synchronized void releaseGpuBuffers() {
+        if (gpuPipeline != null)
+            gpuPipeline.release();
+    }
+    
+    
+    /**
+     * Pure Java filters, using all cores
+     */
+    private synchronized FociFilters getCpuFilters() {
+        if (cpuFilters == null)
+            cpuFilters = new FociFilters(Runtime.getRuntime().availableProcessors());
+        return(cpuFilters);
+    }
+    
+    
+    /**
+     * Check if foci filtering runs with CLIJ2: forced, or automatically when an OpenCL device is available
+     */
+    private boolean useGpu(Parameters params) {
+        switch (params.fociEngine) {
+            case "CPU" :
+                return(false);
+            case "GPU" :
+                if (getClij2() == null)
+                    throw new IllegalStateException("GPU filtering engine requested but no OpenCL device is available");
+                return(true);
+            default :
+                return(getClij2() != null);
+        }
+    }
 
     
     /**
      * Difference of Gaussians filtering using CLIJ2
+     * CLIJ2 instance is shared between workers, calls to it are serialized
+     * Step by step CLIJ2 filters are kept as reference for the fused pipeline (FociGpuPipeline)
      */ 
     public ImagePlus DOG(ImagePlus img, double size1, double size2) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLDOG = clij2.create(imgCL);
-        clij2.differenceOfGaussian2D(imgCL, imgCLDOG, size1, size1, size2, size2);
-        ImagePlus imgDOG = clij2.pull(imgCLDOG);
-        clij2.release(imgCL);
-        clij2.release(imgCLDOG);
-        return(imgDOG);
+        CLIJ2 clij2 = getClij2();
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img);
+            ClearCLBuffer imgCLDOG = clij2.create(imgCL);
+            clij2.differenceOfGaussian2D(imgCL, imgCLDOG, size1, size1, size2, size2);
+            ImagePlus imgDOG = clij2.pull(imgCLDOG);
+            clij2.release(imgCL);
+            clij2.release(imgCLDOG);
+            return(imgDOG);
+        }
     }
     
     
@@ -369,13 +855,16 @@ public class Tools {
      * Automatic thresholding using CLIJ2
      */
     public ImagePlus threshold(ImagePlus img, String thMed) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLBin = clij2.create(imgCL);
-        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
-        ImagePlus imgBin = clij2.pull(imgCLBin);
-        clij2.release(imgCL);
-        clij2.release(imgCLBin);
-        return(imgBin);
+        CLIJ2 clij2 = getClij2();
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img);
+            ClearCLBuffer imgCLBin = clij2.create(imgCL);
+            clij2.automaticThreshold(imgCL, imgCLBin, thMed);
+            ImagePlus imgBin = clij2.pull(imgCLBin);
+            clij2.release(imgCL);
+            clij2.release(imgCLBin);
+            return(imgBin);
+        }
     }
     
     
@@ -383,13 +872,16 @@ public class Tools {
      * Fill holes using CLIJ2
      */
     public ImagePlus fillHoles(ImagePlus img) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLBin = clij2.create(imgCL);
-        clij2.binaryFillHoles(imgCL, imgCLBin);
-        ImagePlus imgBin = clij2.pull(imgCLBin);
-        clij2.release(imgCL);
-        clij2.release(imgCLBin);
-        return(imgBin);
+        CLIJ2 clij2 = getClij2();
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img);
+            ClearCLBuffer imgCLBin = clij2.create(imgCL);
+            clij2.binaryFillHoles(imgCL, imgCLBin);
+            ImagePlus imgBin = clij2.pull(imgCLBin);
+            clij2.release(imgCL);
+            clij2.release(imgCLBin);
+            return(imgBin);
+        }
     }
     
         
@@ -406,50 +898,197 @@ public class Tools {
     
     /**
      * Return list of Nucleus with their respective population of PML foci
+     * A foci belongs to the nucleus containing its centroid, read in the labels of nuclei (Cellpose mask)
+     * (each foci centroid is computed once, assignment is O(foci))
      */
-    public ArrayList<Nucleus> colocalizeNucFoci(Objects3DIntPopulation nucPop, Objects3DIntPopulation pmlPop) {
-        ArrayList<Nucleus> nuclei = new ArrayList();
+    public ArrayList<Nucleus> colocalizeNucFoci(Objects3DIntPopulation nucPop, Objects3DIntPopulation pmlPop, ImagePlus mask) {
+        return(colocalizeNucFoci(nucPop, new Objects3DIntPopulation[]{pmlPop}, mask).get(0));
+    }
+    
+    
+    /**
+     * Same as colocalizeNucFoci for several populations of foci (parameter sweep), nuclei being indexed and encoded once
+     * Labels of nuclei were reset when filtered: the mask label of each nucleus is read at its first voxel
+     */
+    public List<ArrayList<Nucleus>> colocalizeNucFoci(Objects3DIntPopulation nucPop, Objects3DIntPopulation[] pmlPops, ImagePlus mask) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        int depth = mask.getStackSize();
+        ImageStack maskStack = mask.getStack();
         
-        nucPop.getObjects3DInt().stream().forEach(nuc -> {
-            Objects3DIntPopulation pmlInNucPop = new Objects3DIntPopulation();
-            pmlPop.getObjects3DInt().stream()
-                .filter(pml -> nuc.contains(new MeasureCentroid(pml).getCentroidRoundedAsVoxelInt()))
-                .forEach(pml -> {pmlInNucPop.addObject(pml);});
-                
-            nuclei.add(new Nucleus(nuc, pmlInNucPop));
-        });
+        // Index (+1) of the nucleus of each mask label, 0 for labels of nuclei filtered out
+        List<Object3DInt> nucs = nucPop.getObjects3DInt();
+        int[] maskLabels = new int[nucs.size()];
+        int maxLabel = 0;
+        for (int i = 0; i < nucs.size(); i++) {
+            for (Object3DPlane plane: nucs.get(i).getObject3DPlanes()) {
+                if (plane.getVoxels().isEmpty())
+                    continue;
+                VoxelInt voxel = plane.getVoxels().get(0);
+                maskLabels[i] = (int) maskStack.getProcessor(voxel.getZ() + 1).getf(voxel.getX(), voxel.getY());
+                break;
+            }
+            maxLabel = Math.max(maxLabel, maskLabels[i]);
+        }
+        int[] nucIndex = new int[maxLabel + 1];
+        for (int i = 0; i < nucs.size(); i++)
+            if (maskLabels[i] > 0)
+                nucIndex[maskLabels[i]] = i + 1;
+        
+        // Nuclei are encoded once, their encodings are shared by all populations
+        List<RleObject> nucRles = new ArrayList<>();
+        for (Object3DInt nuc: nucs)
+            nucRles.add(RleObject.of(nuc));
         
-        return(nuclei);
+        List<ArrayList<Nucleus>> nucleiPops = new ArrayList<>();
+        for (Objects3DIntPopulation pmlPop: pmlPops) {
+            ArrayList<Objects3DIntPopulation> pmlInNucPops = new ArrayList<>();
+            for (int i = 0; i < nucs.size(); i++)
+                pmlInNucPops.add(new Objects3DIntPopulation());
+            for (Object3DInt pml: pmlPop.getObjects3DInt()) {
+                VoxelInt centroid = new MeasureCentroid(pml).getCentroidRoundedAsVoxelInt();
+                int x = centroid.getX(), y = centroid.getY(), z = centroid.getZ();
+                if (x < 0 || y < 0 || z < 0 || x >= width || y >= height || z >= depth)
+                    continue;
+                int label = (int) maskStack.getProcessor(z + 1).getf(x, y);
+                int index = (label > 0 && label <= maxLabel) ? nucIndex[label] : 0;
+                if (index > 0)
+                    pmlInNucPops.get(index - 1).addObject(pml);
+            }
+            
+            ArrayList<Nucleus> nuclei = new ArrayList();
+            for (int i = 0; i < nucs.size(); i++)
+                nuclei.add(new Nucleus(nucs.get(i), nucRles.get(i), pmlInNucPops.get(i)));
+            nucleiPops.add(nuclei);
+        }
+        return(nucleiPops);
+    }
+    
+    
+    /**
+     * Draw results, without reference to the source image in labels format
+     */
+    public void drawResults(ArrayList<Nucleus> nuclei, ImagePlus imgPml, ImagePlus imgDapi, String outDir, String imgName, Parameters params) {
+        drawResults(nuclei, imgPml, imgDapi, outDir, imgName, null, params);
     }
     
     
     /**
-     * Draw results
+     * Draw results, full size or as a preview (max projection or downsampled) depending on overlay parameter
+     * Merged TIFF format merges labels with DAPI and PML channels, labels format only saves nuclei labels and foci mask
+     * PML image can be null (streaming mode), its channel is then left out
      */
-    public void drawResults(ArrayList<Nucleus> nuclei, ImagePlus imgPml, ImagePlus imgDapi, String outDir, String imgName) {
-        ImageHandler imhNuc = ImageHandler.wrap(imgPml).createSameDimensions();
-        ImageHandler imhPml = imhNuc.createSameDimensions();
+    public void drawResults(ArrayList<Nucleus> nuclei, ImagePlus imgPml, ImagePlus imgDapi, String outDir, String imgName, String sourceFile, Parameters params) {
+        if (params.overlay.equals("None"))
+            return;
+        if (params.overlayFormat.equals("Labels OME-TIFF")) {
+            saveLabels(nuclei, imgDapi, outDir, imgName, sourceFile, params);
+            return;
+        }
+        ImagePlus imgNuc = createSameDimensions(imgDapi, "nuclei");
+        ImagePlus imgFoci = createSameDimensions(imgDapi, "foci");
         
         for (Nucleus nucleus: nuclei) {
-            nucleus.nucleus.drawObject(imhNuc);
-            for (Object3DInt pml: nucleus.pmlFoci.getObjects3DInt())
-                pml.drawObject(imhPml, 255);
+            nucleus.nucleusRle.draw(imgNuc.getStack(), nucleus.nucleus.getLabel());
+            for (RleObject pml: nucleus.pmlFociRle)
+                pml.draw(imgFoci.getStack(), 255);
         }
         
-        IJ.run(imhNuc.getImagePlus(), "glasbey on dark", "");
-        IJ.run(imhNuc.getImagePlus(), "Enhance Contrast", "saturated=0.35");
+        // Previews are new images, channels of the analysis are left unchanged
+        Calibration cal = params.getCalibration();
+        if (!params.overlay.equals("Full")) {
+            ImagePlus nucPreview = preview(imgNuc, params.overlay, true);
+            ImagePlus fociPreview = preview(imgFoci, params.overlay, true);
+            closeImage(imgNuc);
+            closeImage(imgFoci);
+            imgNuc = nucPreview;
+            imgFoci = fociPreview;
+            imgDapi = preview(imgDapi, params.overlay, false);
+            imgPml = (imgPml == null) ? null : preview(imgPml, params.overlay, false);
+            if (params.overlay.equals("Downsampled")) {
+                cal.pixelWidth *= PREVIEW_FACTOR;
+                cal.pixelHeight *= PREVIEW_FACTOR;
+            }
+        }
+        
+        IJ.run(imgNuc, "glasbey on dark", "");
+        IJ.run(imgNuc, "Enhance Contrast", "saturated=0.35");
         IJ.resetMinAndMax(imgDapi);
-        IJ.run(imhPml.getImagePlus(), "Green", "");
-        IJ.run(imhPml.getImagePlus(), "Enhance Contrast", "saturated=0.35");
-        IJ.run(imgPml, "Enhance Contrast", "saturated=0.35");
+        IJ.run(imgFoci, "Green", "");
+        IJ.run(imgFoci, "Enhance Contrast", "saturated=0.35");
+        if (imgPml != null)
+            IJ.run(imgPml, "Enhance Contrast", "saturated=0.35");
 
-        ImagePlus[] imgColors = {imhNuc.getImagePlus(), null, imhPml.getImagePlus(), imgDapi, imgPml};
+        ImagePlus[] imgColors = {imgNuc, null, imgFoci, imgDapi, imgPml};
         ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, false);
         imgObjects.setCalibration(cal);
         new FileSaver(imgObjects).saveAsTiff(outDir + imgName + ".tif");
         
-        imhNuc.closeImagePlus();
-        imhPml.closeImagePlus();
+        closeImage(imgNuc);
+        closeImage(imgFoci);
         closeImage(imgObjects);
+        if (!params.overlay.equals("Full")) {
+            closeImage(imgDapi);
+            if (imgPml != null)
+                closeImage(imgPml);
+        }
+    }
+    
+    
+    /**
+     * Save nuclei labels and foci mask in a compressed and tiled OME-TIFF, as a preview depending on overlay parameter
+     */
+    private void saveLabels(ArrayList<Nucleus> nuclei, ImagePlus imgDapi, String outDir, String imgName, String sourceFile, Parameters params) {
+        ImagePlus[] labels = LabelOverlay.draw(nuclei, imgDapi.getWidth(), imgDapi.getHeight(), imgDapi.getStackSize());
+        Calibration cal = params.getCalibration();
+        if (!params.overlay.equals("Full")) {
+            for (int c = 0; c < labels.length; c++) {
+                ImagePlus labelsPreview = preview(labels[c], params.overlay, true);
+                closeImage(labels[c]);
+                labels[c] = labelsPreview;
+            }
+            if (params.overlay.equals("Downsampled")) {
+                cal.pixelWidth *= PREVIEW_FACTOR;
+                cal.pixelHeight *= PREVIEW_FACTOR;
+            }
+        }
+        try {
+            long bytes = LabelOverlay.write(labels, cal, outDir + imgName + LabelOverlay.EXTENSION, sourceFile);
+            System.out.println("Labels overlay saved (" + bytes / 1024 + " KB)");
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            for (ImagePlus img: labels)
+                closeImage(img);
+        }
+    }
+    
+    
+    /**
+     * Max intensity projection or XY downsampling by PREVIEW_FACTOR of an image
+     * Labels are downsampled without interpolation, intensities are averaged
+     */
+    private ImagePlus preview(ImagePlus img, String overlay, boolean labels) {
+        if (overlay.equals("Max projection"))
+            return(ZProjector.run(img, "max"));
+        int width = Math.max(1, img.getWidth() / PREVIEW_FACTOR), height = Math.max(1, img.getHeight() / PREVIEW_FACTOR);
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 1; z <= img.getStackSize(); z++) {
+            ImageProcessor ip = img.getStack().getProcessor(z);
+            ip.setInterpolationMethod(labels ? ImageProcessor.NONE : ImageProcessor.BILINEAR);
+            stack.addSlice(labels ? ip.resize(width, height) : ip.resize(width, height, true));
+        }
+        return(new ImagePlus(img.getTitle(), stack));
+    }
+    
+    
+    /**
+     * Black image with same type and stack size as the given one
+     */
+    private ImagePlus createSameDimensions(ImagePlus img, String title) {
+        ImageStack stack = new ImageStack(img.getWidth(), img.getHeight());
+        for (int z = 0; z < img.getStackSize(); z++)
+            stack.addSlice(img.getProcessor().createProcessor(img.getWidth(), img.getHeight()));
+        return(new ImagePlus(title, stack));
     }
 }
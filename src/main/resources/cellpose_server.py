@@ -0,0 +1,183 @@
+"""
+Persistent Cellpose worker used by the DAPI_PML plugin
+
+The model is loaded once, then images are segmented one after another.
+Protocol on stdin/stdout, UTF-8 lines (all Cellpose logs go to stderr):
+  - worker sends "READY\n" once the model is loaded
+  - request:  "SEG <width> <height> <depth> <dtype>\n" + raw little-endian pixels (dtype u1, u2 or f4)
+  - response: "OK <width> <height> <depth> u2\n" + raw little-endian 16-bit labels
+              or "ERR <message>\n"
+  - request:  "SEGMAP <path>\n", pixels are in a memory-mapped file (in /dev/shm when available):
+              32-bytes header (magic "DPML", version, width, height, depth, dtype code, labels offset, reserved; little-endian int32)
+              + raw little-endian pixels, the worker writes the 16-bit labels at labels offset
+  - response: "OK <width> <height> <depth> u2\n" (no payload) or "ERR <message>\n"
+  - "QUIT\n" stops the worker
+Run with --fake to replace Cellpose by a simple threshold + connected components labelling,
+so that the protocol can be tested with a plain python3 (no Cellpose environment, no numpy).
+
+@author Héloïse Monnet @ ORION-CIRB
+"""
+
+import argparse
+import array
+import mmap
+import os
+import struct
+import sys
+import traceback
+
+# Item size and array typecode of each pixel type of the protocol
+DTYPES = {"u1": (1, "B"), "u2": (2, "H"), "f4": (4, "f")}
+# Header of the memory-mapped exchange file and its dtype codes
+MAP_HEADER = struct.Struct("<4s7i")
+MAP_DTYPES = {0: "u1", 1: "u2", 2: "f4"}
+
+
+def read_exactly(stream, size):
+    data = bytearray()
+    while len(data) < size:
+        chunk = stream.read(size - len(data))
+        if not chunk:
+            raise EOFError("Connection closed while reading image")
+        data.extend(chunk)
+    return bytes(data)
+
+
+def error_reply(e):
+    # Messages may hold non-ASCII paths, undecodable file names (surrogates) are replaced
+    return ("ERR " + str(e).replace("\n", " ") + "\n").encode("utf-8", "replace")
+
+
+def segment_mapped(path, segment):
+    # Views over the mapping are released before it is closed, also when segment fails
+    with open(path, "r+b") as f, mmap.mmap(f.fileno(), 0) as buf, memoryview(buf) as view:
+        magic, version, width, height, depth, code, labels_offset, _ = MAP_HEADER.unpack_from(buf, 0)
+        if magic != b"DPML" or version != 1 or code not in MAP_DTYPES:
+            raise ValueError("Invalid exchange file " + path)
+        dtype = MAP_DTYPES[code]
+        size = width * height * depth
+        with view[MAP_HEADER.size:MAP_HEADER.size + size * DTYPES[dtype][0]] as pixels:
+            try:
+                masks = segment(pixels, width, height, depth, dtype)
+            except Exception as e:
+                # Locals of the failed frames (numpy arrays over the pixels) would keep the view exported
+                traceback.clear_frames(e.__traceback__)
+                raise
+        view[labels_offset:labels_offset + 2 * size] = masks
+    return width, height, depth
+
+
+def cellpose_segmenter(args):
+    import numpy as np
+    from cellpose import models
+    if os.path.exists(args.model):
+        model = models.CellposeModel(gpu=args.use_gpu, pretrained_model=args.model)
+    else:
+        model = models.CellposeModel(gpu=args.use_gpu, model_type=os.path.basename(args.model))
+    channels = [args.chan, max(args.chan2, 0)]
+
+    def segment(data, width, height, depth, dtype):
+        img = np.frombuffer(data, dtype="<" + dtype).reshape(depth, height, width)
+        x = img[0] if depth == 1 else img
+        masks = model.eval(x, diameter=args.diameter, channels=channels, z_axis=None if x.ndim == 2 else 0,
+                           flow_threshold=args.flow_threshold, cellprob_threshold=args.cellprob_threshold,
+                           stitch_threshold=max(args.stitch_threshold, 0.0), do_3D=args.do_3D)[0]
+        return np.ascontiguousarray(masks, dtype="<u2").tobytes()
+
+    return segment
+
+
+def fake_segmenter():
+    def label_plane(plane, width, height):
+        mean = sum(plane) / len(plane)
+        labels = array.array("H", bytes(2 * len(plane)))
+        current = 0
+        for start in range(len(plane)):
+            if plane[start] <= mean or labels[start]:
+                continue
+            current += 1
+            labels[start] = current
+            todo = [start]
+            while todo:
+                i = todo.pop()
+                x, y = i % width, i // width
+                for nx, ny in ((x - 1, y), (x + 1, y), (x, y - 1), (x, y + 1)):
+                    n = ny * width + nx
+                    if 0 <= nx < width and 0 <= ny < height and plane[n] > mean and not labels[n]:
+                        labels[n] = current
+                        todo.append(n)
+        return labels
+
+    def segment(data, width, height, depth, dtype):
+        pixels = array.array(DTYPES[dtype][1])
+        pixels.frombytes(data)
+        if sys.byteorder == "big":
+            pixels.byteswap()
+        size = width * height
+        labels = array.array("H")
+        for z in range(depth):
+            labels.extend(label_plane(pixels[z * size:(z + 1) * size], width, height))
+        if sys.byteorder == "big":
+            labels.byteswap()
+        return labels.tobytes()
+
+    return segment
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Persistent Cellpose worker")
+    parser.add_argument("--model", default="cyto2")
+    parser.add_argument("--diameter", type=float, default=0)
+    parser.add_argument("--chan", type=int, default=0)
+    parser.add_argument("--chan2", type=int, default=-1)
+    parser.add_argument("--flow_threshold", type=float, default=0.4)
+    parser.add_argument("--cellprob_threshold", type=float, default=0.0)
+    parser.add_argument("--stitch_threshold", type=float, default=-1)
+    parser.add_argument("--do_3D", action="store_true")
+    parser.add_argument("--use_gpu", action="store_true")
+    parser.add_argument("--fake", action="store_true")
+    args = parser.parse_args()
+
+    proto_in = sys.stdin.buffer
+    proto_out = sys.stdout.buffer
+    # Keep Cellpose logs away from the protocol channel
+    sys.stdout = sys.stderr
+
+    segment = fake_segmenter() if args.fake else cellpose_segmenter(args)
+    proto_out.write(b"READY\n")
+    proto_out.flush()
+
+    while True:
+        line = proto_in.readline()
+        if not line:
+            break
+        fields = line.decode("utf-8", "replace").split()
+        if not fields or fields[0] == "QUIT":
+            break
+        if fields[0] == "SEGMAP" and len(fields) > 1:
+            try:
+                path = line.decode("utf-8").strip()[len("SEGMAP "):]
+                width, height, depth = segment_mapped(path, segment)
+                proto_out.write(("OK %d %d %d u2\n" % (width, height, depth)).encode("utf-8"))
+            except Exception as e:
+                proto_out.write(error_reply(e))
+            proto_out.flush()
+            continue
+        if fields[0] != "SEG" or len(fields) != 5 or fields[4] not in DTYPES:
+            proto_out.write(("ERR Unknown request " + line.decode("utf-8", "replace").strip() + "\n").encode("utf-8", "replace"))
+            proto_out.flush()
+            continue
+
+        width, height, depth, dtype = int(fields[1]), int(fields[2]), int(fields[3]), fields[4]
+        data = read_exactly(proto_in, width * height * depth * DTYPES[dtype][0])
+        try:
+            masks = segment(data, width, height, depth, dtype)
+            proto_out.write(("OK %d %d %d u2\n" % (width, height, depth)).encode("utf-8"))
+            proto_out.write(masks)
+        except Exception as e:
+            proto_out.write(error_reply(e))
+        proto_out.flush()
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,60 @@
+package DAPI_PML_Tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class BatchManifestTest {
+
+    private static final String HEADER = "Image name\tValue\n";
+
+
+    /**
+     * Resuming with other parameters is refused and rows of the earlier run are kept
+     */
+    @Test
+    public void otherParametersKeepEarlierRows() throws IOException {
+        Path outDir = Files.createTempDirectory("manifest");
+        File img = Files.write(outDir.resolve("img1.tif"), new byte[]{1, 2, 3}).toFile();
+        BatchManifest manifest = new BatchManifest(outDir.toString(), "hashA", null);
+        try (BufferedWriter results = manifest.openResults("results.csv", HEADER)) {
+            results.write("img1\t1\n");
+        }
+        manifest.mark(img.getPath(), BatchManifest.DONE);
+        manifest.close();
+        List<String> rows = Files.readAllLines(outDir.resolve("results.csv"), StandardCharsets.UTF_8);
+
+        assertTrue(BatchManifest.sameParameters(outDir.toString(), BatchManifest.FILE_NAME, "hashA"));
+        assertFalse(BatchManifest.sameParameters(outDir.toString(), BatchManifest.FILE_NAME, "hashB"));
+        BatchManifest other = new BatchManifest(outDir.toString(), "hashB", null);
+        try {
+            other.openResults("results.csv", HEADER).close();
+            fail("Results of other parameters opened");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            other.close();
+        }
+        assertEquals(rows, Files.readAllLines(outDir.resolve("results.csv"), StandardCharsets.UTF_8));
+
+        // Same parameters: the image is done and its row kept
+        BatchManifest same = new BatchManifest(outDir.toString(), "hashA", null);
+        same.openResults("results.csv", HEADER).close();
+        assertEquals(0, same.remaining(Arrays.asList(img.getPath())).size());
+        same.close();
+        assertEquals(rows, Files.readAllLines(outDir.resolve("results.csv"), StandardCharsets.UTF_8));
+    }
+}
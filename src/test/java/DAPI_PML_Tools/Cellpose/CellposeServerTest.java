@@ -0,0 +1,149 @@
+package DAPI_PML_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Protocol checks with the stand-in worker (cellpose_server.py --fake, system python3), skipped without python3
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class CellposeServerTest {
+
+    private static final int NB_SPOTS = 12;
+
+    private CellposeServer server;
+    private ImagePlus img;
+
+
+    @Before
+    public void setUp() throws Exception {
+        boolean python;
+        try {
+            python = new ProcessBuilder("python3", "--version").start().waitFor() == 0;
+        } catch (IOException e) {
+            python = false;
+        }
+        Assume.assumeTrue("python3 not available", python);
+
+        int width = 200, height = 150, depth = 2;
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            ShortProcessor ip = new ShortProcessor(width, height);
+            for (int s = 0; s < NB_SPOTS; s++)
+                for (int y = 10 + (s / 4) * 45; y < 30 + (s / 4) * 45; y++)
+                    for (int x = 10 + (s % 4) * 48; x < 35 + (s % 4) * 48; x++)
+                        ip.set(x, y, 1000 + 100 * s);
+            stack.addSlice(ip);
+        }
+        img = new ImagePlus("spots", stack);
+        img.setDimensions(1, depth, 1);
+        server = new CellposeServer(new CellposeTaskSettings("cyto2", 0, 30, ""), true);
+    }
+
+
+    @After
+    public void tearDown() {
+        if (server != null)
+            server.close();
+    }
+
+
+    @Test
+    public void pipeGivesSameLabelsAsMappedFile() throws Exception {
+        ImagePlus mapped = server.run(img);
+        assertSpots(mapped);
+        server.useSharedMemory(false);
+        ImagePlus piped = server.run(img);
+        assertSpots(piped);
+        assertSameLabels(mapped, piped);
+    }
+
+
+    @Test
+    public void errReplyKeepsWorker() throws Exception {
+        ImagePlus labels = server.run(img);
+        Process worker = server.process;
+        // Non-ASCII path: the worker answers in UTF-8 instead of dying while encoding its reply
+        String path = "/nonexistent/données/cellpose_server.raw";
+        server.toServer.write(("SEGMAP " + path + "\n").getBytes(StandardCharsets.UTF_8));
+        server.toServer.flush();
+        try {
+            server.readAnswer();
+            fail("ERR reply expected");
+        } catch (CellposeServer.WorkerError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("données"));
+        }
+        assertTrue(worker.isAlive());
+        assertSameLabels(labels, server.run(img));
+        assertSame(worker, server.process);
+    }
+
+
+    @Test
+    public void killedWorkerIsRestarted() throws Exception {
+        ImagePlus labels = server.run(img);
+        Process worker = server.process;
+        worker.destroyForcibly().waitFor();
+        assertSameLabels(labels, server.run(img));
+        assertNotSame(worker, server.process);
+    }
+
+
+    @Test
+    public void workerOutOfSyncIsStopped() throws Exception {
+        ImagePlus labels = server.run(img);
+        Process worker = server.process;
+        // Stray request: its answer is read in place of the next one
+        server.toServer.write("SEG 1 1 1 u1\n".getBytes(StandardCharsets.UTF_8));
+        server.toServer.write(0);
+        try {
+            server.run(img);
+            fail("Out of sync answer expected");
+        } catch (CellposeServer.WorkerError e) {
+            fail("Out of sync answer is not a worker error");
+        } catch (IOException e) {
+            assertNull(server.process);
+        }
+        assertSameLabels(labels, server.run(img));
+        assertNotSame(worker, server.process);
+    }
+
+
+    /**
+     * NB_SPOTS distinct labels in each plane, the corners (background) being 0
+     */
+    private static void assertSpots(ImagePlus labels) {
+        for (int z = 1; z <= labels.getStackSize(); z++) {
+            ImageProcessor ip = labels.getStack().getProcessor(z);
+            Set<Integer> values = new HashSet<>();
+            for (int i = 0; i < ip.getPixelCount(); i++)
+                if (ip.get(i) != 0)
+                    values.add(ip.get(i));
+            assertEquals("Labels of plane " + z, NB_SPOTS, values.size());
+            assertEquals("Background of plane " + z, 0, ip.get(0, 0));
+        }
+    }
+
+
+    private static void assertSameLabels(ImagePlus labels1, ImagePlus labels2) {
+        for (int z = 1; z <= labels1.getStackSize(); z++)
+            assertArrayEquals("Plane " + z, (short[]) labels1.getStack().getPixels(z), (short[]) labels2.getStack().getPixels(z));
+    }
+}
@@ -0,0 +1,54 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CPU engine against CLIJ2, skipped without OpenCL device (-Dclij.device=<name> to use another device, POCL for instance)
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class FociFiltersTest {
+
+    private static final double SIGMA1 = 1, SIGMA2 = 3;
+    private static final String TH_METHOD = "Triangle";
+
+
+    /**
+     * Fused CLIJ2 pipeline gives the mask of the step by step CLIJ2 calls, the CPU engine matches it within rounding differences
+     */
+    @Test
+    public void masksMatchClij2() {
+        Tools tools = new Tools();
+        Assume.assumeTrue("No OpenCL device", tools.getClij2() != null);
+        ImagePlus img = TestImages.syntheticFoci(512, 512, 10);
+
+        ImagePlus maskGpu = tools.fillHoles(tools.threshold(tools.DOG(img, SIGMA1, SIGMA2), TH_METHOD));
+        FociGpuPipeline pipeline = new FociGpuPipeline(tools.getClij2());
+        ImagePlus maskFused = pipeline.fociMask(img, SIGMA1, SIGMA2, TH_METHOD);
+        pipeline.release();
+        FociFilters filters = new FociFilters(Runtime.getRuntime().availableProcessors());
+        ImagePlus maskCpu = filters.fociMask(img, SIGMA1, SIGMA2, TH_METHOD);
+        filters.close();
+
+        long fusedDiff = 0, inter = 0, cpuNb = 0, gpuNb = 0;
+        for (int z = 1; z <= img.getStackSize(); z++) {
+            ImageProcessor ipFused = maskFused.getStack().getProcessor(z);
+            ImageProcessor ipGpu = maskGpu.getStack().getProcessor(z);
+            ImageProcessor ipCpu = maskCpu.getStack().getProcessor(z);
+            for (int i = 0; i < ipGpu.getPixelCount(); i++) {
+                boolean gpu = ipGpu.getf(i) > 0, cpu = ipCpu.getf(i) > 0;
+                fusedDiff += ((ipFused.getf(i) > 0) != gpu) ? 1 : 0;
+                inter += (cpu && gpu) ? 1 : 0;
+                cpuNb += cpu ? 1 : 0;
+                gpuNb += gpu ? 1 : 0;
+            }
+        }
+        assertEquals("Fused vs step by step CLIJ2 voxels", 0, fusedDiff);
+        double dice = (cpuNb + gpuNb == 0) ? 1 : 2.0 * inter / (cpuNb + gpuNb);
+        assertTrue("CPU vs CLIJ2 Dice " + dice, dice > 0.98);
+    }
+}
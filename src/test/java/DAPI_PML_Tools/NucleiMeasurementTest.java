@@ -0,0 +1,133 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.List;
+import java.util.Random;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+import mcib3d.image3d.ImageHandler;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class NucleiMeasurementTest {
+
+    /**
+     * Single-pass measurement gives the values of the former per-nucleus computation with frame-sized buffers
+     * (Nucleus.computeParams before NucleiMeasurement), on synthetic nuclei, foci and PML labels: foci drawn in an image,
+     * diffuse signal summed after blanking the dilated foci (elliptic kernel of radii 2, 2, 0 as getObjectDilated)
+     * in a copy of the PML image. All foci of the image are blanked and the diffuse area is counted on the voxels left
+     */
+    @Test
+    public void measureMatchesFrameSizedComputation() {
+        int width = 400, height = 300, depth = 5;
+        Calibration cal = new Calibration();
+        cal.pixelWidth = cal.pixelHeight = 0.1;
+        cal.pixelDepth = 0.3;
+        double pixArea = cal.pixelWidth * cal.pixelHeight, voxVolume = pixArea * cal.pixelDepth, bgPml = 120;
+        Random random = new Random(42);
+        ImageStack nucStack = new ImageStack(width, height), fociStack = new ImageStack(width, height), pmlStack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            ShortProcessor ipNuc = new ShortProcessor(width, height), ipFoci = new ShortProcessor(width, height), ipPml = new ShortProcessor(width, height);
+            for (int i = 0; i < width * height; i++)
+                ipPml.set(i, 100 + random.nextInt(200));
+            int label = 0;
+            for (int cy = 40; cy < height - 30; cy += 70)
+                for (int cx = 40; cx < width - 30; cx += 70) {
+                    label++;
+                    for (int y = cy - 30; y <= cy + 30; y++)
+                        for (int x = cx - 30; x <= cx + 30; x++)
+                            if ((x-cx)*(x-cx) + (y-cy)*(y-cy) <= 900)
+                                ipNuc.set(x, y, label);
+                }
+            nucStack.addSlice(ipNuc);
+            fociStack.addSlice(ipFoci);
+            pmlStack.addSlice(ipPml);
+        }
+        for (int f = 1; f <= 400; f++) {
+            int fx = random.nextInt(width - 4), fy = random.nextInt(height - 4), fz = random.nextInt(depth - 1);
+            int fw = 1 + random.nextInt(3), fh = 1 + random.nextInt(3);
+            for (int z = fz; z < fz + 2; z++) {
+                ImageProcessor ipFoci = fociStack.getProcessor(z+1), ipPml = pmlStack.getProcessor(z+1);
+                for (int y = fy; y < fy + fh; y++)
+                    for (int x = fx; x < fx + fw; x++) {
+                        ipFoci.set(x, y, f);
+                        ipPml.set(x, y, 1000 + random.nextInt(2000));
+                    }
+            }
+        }
+        ImagePlus mask = new ImagePlus("nuclei", nucStack), imgPml = new ImagePlus("pml", pmlStack);
+        mask.setCalibration(cal);
+        imgPml.setCalibration(cal);
+        Objects3DIntPopulation nucPop = new Objects3DIntPopulation(ImageHandler.wrap(mask));
+        Objects3DIntPopulation pmlPop = new Objects3DIntPopulation(ImageHandler.wrap(new ImagePlus("foci", fociStack)));
+        for (Objects3DIntPopulation pop: new Objects3DIntPopulation[]{nucPop, pmlPop})
+            for (Object3DInt obj: pop.getObjects3DInt()) {
+                obj.setVoxelSizeXY(cal.pixelWidth);
+                obj.setVoxelSizeZ(cal.pixelDepth);
+            }
+        List<Nucleus> nuclei = new Tools().colocalizeNucFoci(nucPop, pmlPop, mask);
+        NucleiMeasurement measurement = new NucleiMeasurement(nuclei, pmlPop, imgPml);
+        measurement.measure(imgPml);
+
+        // Dilated foci (elliptic kernel of radii 2, 2, 0 as getObjectDilated) blanked in a copy of the PML image
+        float[][] blanked = new float[depth][];
+        for (int z = 0; z < depth; z++)
+            blanked[z] = (float[]) pmlStack.getProcessor(z+1).convertToFloat().getPixels();
+        for (Object3DInt foci: pmlPop.getObjects3DInt())
+            for (Object3DPlane plane: foci.getObject3DPlanes())
+                for (VoxelInt voxel: plane.getVoxels())
+                    for (int dy = -2; dy <= 2; dy++)
+                        for (int dx = -2; dx <= 2; dx++) {
+                            int x = voxel.getX() + dx, y = voxel.getY() + dy;
+                            if (dx*dx + dy*dy <= 4 && x >= 0 && y >= 0 && x < width && y < height)
+                                blanked[voxel.getZ()][y * width + x] = Float.NaN;
+                        }
+
+        NucleiTable table = new NucleiTable();
+        measurement.addRows(table, "test", bgPml, pixArea);
+        assertEquals(nuclei.size(), table.size());
+        for (int i = 0; i < nuclei.size(); i++) {
+            Nucleus nucleus = nuclei.get(i);
+            boolean[][] fociMask = new boolean[depth][width * height];
+            for (Object3DInt foci: nucleus.pmlFoci.getObjects3DInt())
+                for (Object3DPlane plane: foci.getObject3DPlanes())
+                    for (VoxelInt voxel: plane.getVoxels())
+                        fociMask[voxel.getZ()][voxel.getY() * width + voxel.getX()] = true;
+            long fociNb = 0, nucNb = 0, diffuseNb = 0;
+            double fociSum = 0, diffuseSum = 0;
+            for (int z = 0; z < depth; z++) {
+                ImageProcessor ipPml = pmlStack.getProcessor(z+1);
+                for (int v = 0; v < width * height; v++)
+                    if (fociMask[z][v]) {
+                        fociNb++;
+                        fociSum += ipPml.getf(v);
+                    }
+            }
+            for (Object3DPlane plane: nucleus.nucleus.getObject3DPlanes())
+                for (VoxelInt voxel: plane.getVoxels()) {
+                    nucNb++;
+                    float value = blanked[voxel.getZ()][voxel.getY() * width + voxel.getX()];
+                    if (!Float.isNaN(value)) {
+                        diffuseNb++;
+                        diffuseSum += value;
+                    }
+                }
+            double diffuseArea = diffuseNb * voxVolume, diffuseInPix = diffuseArea / pixArea;
+            double[] expected = {nucNb * voxVolume, fociNb * voxVolume, fociSum / fociNb - bgPml, fociSum - bgPml * fociNb,
+                                 diffuseArea, (diffuseSum - bgPml * diffuseInPix) / diffuseInPix, diffuseSum - bgPml * diffuseInPix};
+            double[] foci = measurement.getFociParams(i, bgPml), diffuse = measurement.getFociDiffuseParams(i, bgPml, pixArea);
+            double[] found = {table.getNucArea(i), foci[0], foci[1], foci[2], diffuse[0], diffuse[1], diffuse[2]};
+            for (int k = 0; k < expected.length; k++)
+                assertEquals("Nucleus " + i + ", value " + k, expected[k], found[k], 1e-9 * Math.max(1, Math.abs(expected[k])));
+        }
+    }
+}
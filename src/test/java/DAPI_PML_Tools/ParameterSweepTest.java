@@ -0,0 +1,90 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import java.util.List;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class ParameterSweepTest {
+
+    /**
+     * Foci of each parameter set of a sweep are the foci of a normal run with the same parameters, on the CPU engine
+     */
+    @Test
+    public void sweepMatchesNormalRunsOnCpu() {
+        checkSweep("CPU");
+    }
+
+
+    /**
+     * Same check on the CLIJ2 engine, skipped without OpenCL device
+     */
+    @Test
+    public void sweepMatchesNormalRunsOnGpu() {
+        Assume.assumeTrue("No OpenCL device", new Tools().getClij2() != null);
+        checkSweep("GPU");
+    }
+
+
+    private void checkSweep(String engine) {
+        ImagePlus img = TestImages.syntheticFoci(512, 512, 10);
+        Calibration cal = new Calibration();
+        cal.pixelWidth = cal.pixelHeight = 0.1;
+        cal.pixelDepth = 0.3;
+        img.setCalibration(cal);
+        // Triangle twice, to check methods sharing a mask
+        String[] thMethods = {"Triangle", "Otsu", "Li", "Triangle"};
+        double[] minAreas = {0.01, 0.1}, maxAreas = {1, -1};
+        Parameters sweepParams = parameters(cal, engine, "Triangle", 0.01, -1, thMethods, minAreas, maxAreas);
+        ParameterSweep sweep = new ParameterSweep(sweepParams);
+        Tools tools = new Tools();
+        Objects3DIntPopulation[] sweepPops = tools.fociDetection(img, sweepParams, sweep);
+        assertEquals(sweep.size(), sweepPops.length);
+
+        for (int set = 0; set < sweep.size(); set++) {
+            int pair = set % sweep.getMinAreas().length;
+            Parameters params = parameters(cal, engine, thMethods[set / sweep.getMinAreas().length], sweep.getMinAreas()[pair],
+                                           sweep.getMaxAreas()[pair], null, null, null);
+            Objects3DIntPopulation pop = tools.fociDetection(img, params);
+            assertSamePopulation(sweep.columns(set).replace('\t', ' '), pop, sweepPops[set]);
+        }
+    }
+
+
+    private static Parameters parameters(Calibration cal, String engine, String thMethod, double minAreaFoci, double maxAreaFoci,
+                                         String[] sweepThMethods, double[] sweepMinAreaFoci, double[] sweepMaxAreaFoci) {
+        return(new Parameters(0, 1, cal, "", "cyto2", 0, false, 1, 0, -1, 1, 3, thMethod, minAreaFoci, maxAreaFoci, engine,
+                              1, 1024, false, false, "None", "Merged TIFF", 0, 0, "", 0, sweepThMethods, sweepMinAreaFoci, sweepMaxAreaFoci));
+    }
+
+
+    /**
+     * Same objects, in the same order, with the same voxels
+     */
+    private static void assertSamePopulation(String set, Objects3DIntPopulation expected, Objects3DIntPopulation actual) {
+        List<Object3DInt> objects1 = expected.getObjects3DInt(), objects2 = actual.getObjects3DInt();
+        assertEquals(set + ": number of foci", objects1.size(), objects2.size());
+        for (int o = 0; o < objects1.size(); o++) {
+            List<Object3DPlane> planes1 = objects1.get(o).getObject3DPlanes(), planes2 = objects2.get(o).getObject3DPlanes();
+            assertEquals(set + ": planes of foci " + o, planes1.size(), planes2.size());
+            for (int p = 0; p < planes1.size(); p++) {
+                List<VoxelInt> voxels1 = planes1.get(p).getVoxels(), voxels2 = planes2.get(p).getVoxels();
+                assertEquals(set + ": voxels of foci " + o, voxels1.size(), voxels2.size());
+                for (int v = 0; v < voxels1.size(); v++) {
+                    VoxelInt voxel1 = voxels1.get(v), voxel2 = voxels2.get(v);
+                    assertEquals(set + ": voxel of foci " + o, voxel1.getX() + "," + voxel1.getY() + "," + voxel1.getZ(),
+                                 voxel2.getX() + "," + voxel2.getY() + "," + voxel2.getZ());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class SparseLabellerTest {
+
+    /**
+     * Labelling gives the populations of a flood fill labelling voxels in raster order with 26-connectivity (8 in 2D),
+     * as ImageLabeller + getFilterSize + resetLabels: same objects, same voxels and same numbering
+     */
+    @Test
+    public void labelMatchesFloodFill() {
+        Random random = new Random(7);
+        double[] minSizes = {1, 4, 10}, maxSizes = {-1, 30, 200};
+        for (int depth: new int[]{1, 12}) {
+            int width = 300, height = 200;
+            ImageStack stack = new ImageStack(width, height);
+            for (int z = 0; z < depth; z++)
+                stack.addSlice(new ByteProcessor(width, height));
+            // Random blobs, touching each other sometimes, and isolated voxels
+            for (int b = 0; b < 600; b++) {
+                int bx = random.nextInt(width), by = random.nextInt(height), bz = random.nextInt(depth);
+                int rx = random.nextInt(4), ry = random.nextInt(4), rz = (depth > 1) ? random.nextInt(2) : 0;
+                for (int z = Math.max(0, bz - rz); z <= Math.min(depth - 1, bz + rz); z++)
+                    for (int y = Math.max(0, by - ry); y <= Math.min(height - 1, by + ry); y++)
+                        for (int x = Math.max(0, bx - rx); x <= Math.min(width - 1, bx + rx); x++)
+                            if (random.nextInt(5) > 0)
+                                stack.getProcessor(z+1).set(x, y, 255);
+            }
+            ImagePlus mask = new ImagePlus("mask", stack);
+            Objects3DIntPopulation[] pops = new SparseLabeller().label(mask, minSizes, maxSizes, new Calibration());
+            List<List<int[]>> components = floodFill(stack);
+            for (int i = 0; i < minSizes.length; i++) {
+                List<List<int[]>> expected = new ArrayList<>();
+                for (List<int[]> component: components)
+                    if (component.size() >= minSizes[i] && (maxSizes[i] < 0 || component.size() <= maxSizes[i]))
+                        expected.add(component);
+                String filter = "Depth " + depth + ", sizes " + minSizes[i] + " to " + maxSizes[i];
+                List<Object3DInt> objects = pops[i].getObjects3DInt();
+                assertEquals(filter, expected.size(), objects.size());
+                for (int o = 0; o < objects.size(); o++) {
+                    ArrayList<int[]> voxels = new ArrayList<>();
+                    for (Object3DPlane plane: objects.get(o).getObject3DPlanes())
+                        for (VoxelInt voxel: plane.getVoxels())
+                            voxels.add(new int[]{voxel.getZ(), voxel.getY(), voxel.getX()});
+                    List<int[]> component = expected.get(o);
+                    assertEquals(filter + ", label of object " + o, o + 1, (int) objects.get(o).getLabel());
+                    assertEquals(filter + ", volume of object " + o, component.size(), voxels.size());
+                    voxels.sort(SparseLabellerTest::compareVoxels);
+                    component.sort(SparseLabellerTest::compareVoxels);
+                    for (int v = 0; v < voxels.size(); v++)
+                        assertArrayEquals(filter + ", voxel of object " + o, component.get(v), voxels.get(v));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Components of voxels > 0 (z, y, x), in raster order of their first voxel
+     */
+    private static List<List<int[]>> floodFill(ImageStack stack) {
+        int width = stack.getWidth(), height = stack.getHeight(), depth = stack.getSize();
+        boolean[][] visited = new boolean[depth][width * height];
+        List<List<int[]>> components = new ArrayList<>();
+        for (int z = 0; z < depth; z++)
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++) {
+                    if (visited[z][y * width + x] || stack.getProcessor(z+1).get(x, y) == 0)
+                        continue;
+                    List<int[]> component = new ArrayList<>();
+                    ArrayDeque<int[]> queue = new ArrayDeque<>();
+                    visited[z][y * width + x] = true;
+                    queue.add(new int[]{z, y, x});
+                    while (!queue.isEmpty()) {
+                        int[] voxel = queue.poll();
+                        component.add(voxel);
+                        for (int dz = -1; dz <= 1; dz++)
+                            for (int dy = -1; dy <= 1; dy++)
+                                for (int dx = -1; dx <= 1; dx++) {
+                                    int nz = voxel[0] + dz, ny = voxel[1] + dy, nx = voxel[2] + dx;
+                                    if (nz < 0 || ny < 0 || nx < 0 || nz >= depth || ny >= height || nx >= width
+                                            || visited[nz][ny * width + nx] || stack.getProcessor(nz+1).get(nx, ny) == 0)
+                                        continue;
+                                    visited[nz][ny * width + nx] = true;
+                                    queue.add(new int[]{nz, ny, nx});
+                                }
+                    }
+                    components.add(component);
+                }
+        return(components);
+    }
+
+
+    private static int compareVoxels(int[] v1, int[] v2) {
+        for (int i = 0; i < v1.length; i++)
+            if (v1[i] != v2[i])
+                return(Integer.compare(v1[i], v2[i]));
+        return(0);
+    }
+}
@@ -0,0 +1,40 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+/**
+ * Synthetic images shared by tests
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class TestImages {
+
+    /**
+     * 16-bit stack with noisy background, diffuse signal and Gaussian foci
+     */
+    public static ImagePlus syntheticFoci(int width, int height, int depth) {
+        Random random = new Random(42);
+        int[][] foci = new int[width * height / 2000][];
+        for (int f = 0; f < foci.length; f++)
+            foci[f] = new int[]{random.nextInt(width), random.nextInt(height), random.nextInt(depth)};
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            short[] pixels = new short[width * height];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (short) (200 + 20 * random.nextGaussian());
+            for (int[] focus: foci) {
+                if (Math.abs(focus[2] - z) > 1)
+                    continue;
+                for (int y = Math.max(0, focus[1]-4); y < Math.min(height, focus[1]+5); y++)
+                    for (int x = Math.max(0, focus[0]-4); x < Math.min(width, focus[0]+5); x++) {
+                        double d2 = Math.pow(x - focus[0], 2) + Math.pow(y - focus[1], 2) + 4 * Math.pow(z - focus[2], 2);
+                        pixels[y * width + x] += (short) (2000 * Math.exp(-d2 / 4));
+                    }
+            }
+            stack.addSlice(new ShortProcessor(width, height, pixels, null));
+        }
+        return(new ImagePlus("synthetic foci", stack));
+    }
+}
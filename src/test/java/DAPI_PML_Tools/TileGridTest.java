@@ -0,0 +1,108 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tiled processing against whole image processing, on synthetic images
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class TileGridTest {
+
+    private static final int WIDTH = 1000, HEIGHT = 700, DEPTH = 3;
+
+    private final ImageStack labelStack = new ImageStack(WIDTH, HEIGHT), pmlStack = new ImageStack(WIDTH, HEIGHT);
+    private int nbNuclei = 0;
+
+
+    /**
+     * Elliptic nuclei on a grid, with bright PML signal in nuclei over a noisy background
+     */
+    public TileGridTest() {
+        Random random = new Random(42);
+        for (int z = 0; z < DEPTH; z++) {
+            labelStack.addSlice(new ShortProcessor(WIDTH, HEIGHT));
+            ShortProcessor ip = new ShortProcessor(WIDTH, HEIGHT);
+            for (int i = 0; i < WIDTH * HEIGHT; i++)
+                ip.set(i, 100 + random.nextInt(50));
+            pmlStack.addSlice(ip);
+        }
+        for (int cy = 40; cy < HEIGHT - 40; cy += 75) {
+            for (int cx = 40; cx < WIDTH - 40; cx += 75) {
+                int rx = 20 + random.nextInt(15), ry = 20 + random.nextInt(15);
+                nbNuclei++;
+                for (int z = 0; z < DEPTH; z++) {
+                    ImageProcessor ipLabels = labelStack.getProcessor(z+1), ipPml = pmlStack.getProcessor(z+1);
+                    for (int y = -ry; y <= ry; y++)
+                        for (int x = -rx; x <= rx; x++)
+                            if ((double) x*x/(rx*rx) + (double) y*y/(ry*ry) <= 1) {
+                                ipLabels.set(cx + x, cy + y, nbNuclei);
+                                ipPml.set(cx + x, cy + y, 1000 + random.nextInt(3000));
+                            }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * DoG stitched from tiles with a margin of the kernel radius is the DoG of the whole image
+     */
+    @Test
+    public void stitchedDogMatchesWholeImage() {
+        ImagePlus imgPml = new ImagePlus("pml", pmlStack);
+        FociFilters filters = new FociFilters(Runtime.getRuntime().availableProcessors());
+        float[][] dog = filters.differenceOfGaussian2D(imgPml, 1, 3);
+        TileGrid grid = new TileGrid(WIDTH, HEIGHT, 256, FociFilters.kernelRadius(3));
+        float[][] tiledDog = grid.stitch(imgPml, tile -> {
+            float[][] tileDog = filters.differenceOfGaussian2D(tile, 1, 3);
+            ImageStack stack = new ImageStack(tile.getWidth(), tile.getHeight());
+            for (float[] plane: tileDog)
+                stack.addSlice(new FloatProcessor(tile.getWidth(), tile.getHeight(), plane));
+            return(new ImagePlus("dog", stack));
+        });
+        filters.close();
+        for (int z = 0; z < DEPTH; z++)
+            for (int i = 0; i < WIDTH * HEIGHT; i++)
+                assertEquals("DoG at plane " + z + ", pixel " + i, dog[z][i], tiledDog[z][i], 0);
+    }
+
+
+    /**
+     * Labels merged from tiles cover the original nuclei one to one, whether nuclei are cut by tile borders
+     * (overlap 40 smaller than some nuclei) or not, and with a single tile
+     */
+    @Test
+    public void mergedLabelsMatchOriginalLabels() {
+        ImagePlus imgLabels = new ImagePlus("labels", labelStack);
+        for (int[] tiling: new int[][]{{256, 80}, {200, 40}, {2000, 80}}) {
+            String grid = "tile " + tiling[0] + ", overlap " + tiling[1];
+            TileGrid tileGrid = new TileGrid(WIDTH, HEIGHT, tiling[0], tiling[1]);
+            ImagePlus merged = tileGrid.mergeLabels(tileGrid.crop(imgLabels), imgLabels);
+            HashMap<Integer, Integer> pairs = new HashMap<>();
+            long badVoxels = 0;
+            for (int z = 1; z <= DEPTH; z++) {
+                ImageProcessor ipMerged = merged.getStack().getProcessor(z), ipLabels = labelStack.getProcessor(z);
+                for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                    int label = ipLabels.get(i), mergedLabel = (int) ipMerged.getf(i);
+                    if ((label == 0) != (mergedLabel == 0) || (label != 0 && pairs.getOrDefault(label, mergedLabel) != mergedLabel))
+                        badVoxels++;
+                    if (label != 0)
+                        pairs.putIfAbsent(label, mergedLabel);
+                }
+            }
+            assertEquals(grid + ": voxels differing from a one to one mapping", 0, badVoxels);
+            assertEquals(grid + ": nuclei", nbNuclei, pairs.size());
+            assertEquals(grid + ": distinct merged nuclei", nbNuclei, new HashSet<>(pairs.values()).size());
+            assertEquals(grid + ": max merged label", nbNuclei, (int) merged.getStack().getProcessor(1).getStatistics().max);
+        }
+    }
+}
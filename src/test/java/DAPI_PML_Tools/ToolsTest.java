@@ -0,0 +1,86 @@
+package DAPI_PML_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.measurements.MeasureCentroid;
+import mcib3d.image3d.ImageHandler;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Héloïse Monnet @ ORION-CIRB
+ */
+public class ToolsTest {
+
+    /**
+     * colocalizeNucFoci gives each nucleus the same foci, in the same order, as the scan testing each foci centroid
+     * with contains on each nucleus. Nuclei are filtered and their labels reset as in filterPop
+     */
+    @Test
+    public void colocalizeNucFociMatchesContainsScan() {
+        int width = 600, height = 400, depth = 4;
+        Random random = new Random(42);
+        ImageStack nucStack = new ImageStack(width, height), fociStack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            nucStack.addSlice(new ShortProcessor(width, height));
+            fociStack.addSlice(new ShortProcessor(width, height));
+        }
+        int label = 0;
+        for (int cy = 0; cy < height; cy += 60) {
+            for (int cx = 0; cx < width; cx += 60) {
+                int rx = 15 + random.nextInt(20), ry = 15 + random.nextInt(20);
+                label++;
+                for (int z = 0; z < depth; z++) {
+                    ImageProcessor ip = nucStack.getProcessor(z+1);
+                    for (int y = Math.max(0, cy - ry); y <= Math.min(height - 1, cy + ry); y++)
+                        for (int x = Math.max(0, cx - rx); x <= Math.min(width - 1, cx + rx); x++)
+                            if ((double) (x-cx)*(x-cx)/(rx*rx) + (double) (y-cy)*(y-cy)/(ry*ry) <= 1 && ip.get(x, y) == 0)
+                                ip.set(x, y, label);
+                }
+            }
+        }
+        for (int f = 1; f <= 3000; f++) {
+            int fx = random.nextInt(width - 3), fy = random.nextInt(height - 3), fz = random.nextInt(depth - 1);
+            int fw = 1 + random.nextInt(3), fh = 1 + random.nextInt(3);
+            for (int z = fz; z < fz + 2; z++) {
+                ImageProcessor ip = fociStack.getProcessor(z+1);
+                for (int y = fy; y < fy + fh; y++)
+                    for (int x = fx; x < fx + fw; x++)
+                        ip.set(x, y, f);
+            }
+        }
+        ImagePlus mask = new ImagePlus("nuclei", nucStack);
+        Objects3DIntPopulation allNuclei = new Objects3DIntPopulation(ImageHandler.wrap(mask));
+        Objects3DIntPopulation nucPop = new Objects3DIntPopulation();
+        for (Object3DInt nuc: allNuclei.getObjects3DInt())
+            if (random.nextInt(4) > 0)
+                nucPop.addObject(nuc);
+        nucPop.resetLabels();
+        Objects3DIntPopulation pmlPop = new Objects3DIntPopulation(ImageHandler.wrap(new ImagePlus("foci", fociStack)));
+
+        ArrayList<Nucleus> nuclei = new Tools().colocalizeNucFoci(nucPop, pmlPop, mask);
+        assertEquals(nucPop.getNbObjects(), nuclei.size());
+        for (int i = 0; i < nucPop.getNbObjects(); i++) {
+            Object3DInt nuc = nucPop.getObjects3DInt().get(i);
+            List<Object3DInt> expected = new ArrayList<>();
+            for (Object3DInt pml: pmlPop.getObjects3DInt())
+                if (nuc.contains(new MeasureCentroid(pml).getCentroidRoundedAsVoxelInt()))
+                    expected.add(pml);
+            assertSame("Nucleus " + i, nuc, nuclei.get(i).nucleus);
+            assertEquals("Foci of nucleus " + i, expected, nuclei.get(i).pmlFoci.getObjects3DInt());
+        }
+
+        // Parameter sets of a sweep share the encoding of each nucleus
+        List<ArrayList<Nucleus>> nucleiSets = new Tools().colocalizeNucFoci(nucPop, new Objects3DIntPopulation[]{pmlPop, pmlPop}, mask);
+        for (int i = 0; i < nucPop.getNbObjects(); i++)
+            assertSame("Encoding of nucleus " + i, nucleiSets.get(0).get(i).nucleusRle, nucleiSets.get(1).get(i).nucleusRle);
+    }
+}